@@ -0,0 +1,1041 @@
+package lumeProject.lume;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+// Translates a resolved script, ahead of time, into JVM classes: a main
+// class whose run method is the top-level code, and one class per
+// function declaration whose run method is its body. Each is a
+// ClosureCompiler.Code, so LumeFunction invokes them the way it invokes
+// closures. Frame slots become JVM locals and control flow becomes
+// jumps; every operation with more than one case calls into AotRuntime.
+// The tokens, cells, inline caches and declarations the script needs are
+// static fields of the main class, built when it is loaded.
+final class AotCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String PACKAGE = "lumeProject/lume/";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String RUNTIME = PACKAGE + "AotRuntime";
+    private static final String INTERPRETER = PACKAGE + "Interpreter";
+    private static final String BOX = PACKAGE + "Box";
+    private static final String CODE = PACKAGE + "ClosureCompiler$Code";
+    private static final String RUN =
+        "([Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;";
+    private static final String TOKEN = "LlumeProject/lume/Token;";
+    private static final String INSTANCE = "LlumeProject/lume/LumeInstance;";
+    private static final String CLASS = "LlumeProject/lume/LumeClass;";
+    private static final String FUNCTION = "LlumeProject/lume/Stmt$Function;";
+    private static final String LUME_FUNCTION =
+        "LlumeProject/lume/LumeFunction;";
+    private static final String CACHE = "LlumeProject/lume/InlineCache;";
+    private static final String CELL = "LlumeProject/lume/Globals$Cell;";
+    private static final String VALUE = "Ljava/lang/Object;";
+    private static final String BINARY = "(" + TOKEN + VALUE + VALUE + ")";
+    // The constants one static method of the main class builds.
+    private static final int CONSTANTS_PER_METHOD = 500;
+
+    private final String main;
+    private final Map<String, byte[]> classes = new LinkedHashMap<>();
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, String> constantFields =
+        new IdentityHashMap<>();
+    private int functionCount = 0;
+
+    // The method being emitted. Frame slot s is JVM local 3 + s, after
+    // this, the frame and the captures; temporaries come after the slots.
+    private ClassFile.Code code;
+    private int nextLocal;
+    private ClassFile.Label loopExit;
+
+    private AotCompiler(String main) {
+        this.main = main;
+    }
+
+    // The classes of the script, by internal name; the main class is
+    // named after the script.
+    static Map<String, byte[]> compile(List<Stmt> statements,
+                                       int frameSize, String script) {
+        AotCompiler compiler = new AotCompiler(PACKAGE + className(script));
+        ClassFile file = new ClassFile(compiler.main);
+        compiler.run(file, statements, frameSize, 0);
+        constructor(file);
+
+        ClassFile.Code entry = file.method(
+            ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "main",
+            "([Ljava/lang/String;)V");
+        entry.type(ClassFile.NEW, compiler.main);
+        entry.op(ClassFile.DUP, 1);
+        entry.invoke(ClassFile.INVOKESPECIAL, compiler.main, "<init>", "()V");
+        entry.invoke(ClassFile.INVOKESTATIC, RUNTIME, "main",
+            "(L" + CODE + ";)V");
+        entry.op(ClassFile.RETURN, 0);
+
+        compiler.initializer(file);
+        compiler.classes.put(compiler.main, file.toBytes(OBJECT, CODE));
+        return compiler.classes;
+    }
+
+    // Script_ and the file's base name, with anything a Java name can't
+    // hold replaced.
+    static String className(String script) {
+        String base = Paths.get(script).getFileName().toString();
+        if (base.endsWith(".lume")) {
+            base = base.substring(0, base.length() - ".lume".length());
+        }
+
+        StringBuilder name = new StringBuilder("Script_");
+        for (int i = 0; i < base.length(); i++) {
+            char c = base.charAt(i);
+            name.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        return name.toString();
+    }
+
+    // Writes the script's classes to a runnable jar, along with the
+    // classes of the runtime this class was loaded from.
+    static void write(Map<String, byte[]> classes, String script, Path jar)
+            throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.put(Attributes.Name.MAIN_CLASS,
+            (PACKAGE + className(script)).replace('/', '.'));
+
+        // A jar without the runtime would only fail when it is run.
+        try (JarOutputStream out = new JarOutputStream(
+                new FileOutputStream(jar.toFile()), manifest)) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                out.putNextEntry(new JarEntry(entry.getKey() + ".class"));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+            copyRuntime(classes, out);
+        } catch (IOException | IllegalStateException error) {
+            Files.deleteIfExists(jar);
+            throw error;
+        }
+    }
+
+    private static IllegalStateException runtimeNotFound() {
+        return new IllegalStateException(
+            "Could not locate the Lume runtime to copy into the jar.");
+    }
+
+    private static void copyRuntime(Map<String, byte[]> classes,
+                                    JarOutputStream out) throws IOException {
+        CodeSource source =
+            AotCompiler.class.getProtectionDomain().getCodeSource();
+        if (source == null) throw runtimeNotFound();
+
+        File location;
+        try {
+            location = new File(source.getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw runtimeNotFound();
+        }
+
+        if (location.isDirectory()) {
+            File[] files = new File(location, PACKAGE).listFiles();
+            if (files == null) throw runtimeNotFound();
+            for (File file : files) {
+                String name = file.getName();
+                if (!isRuntime(classes, PACKAGE + name)) continue;
+                out.putNextEntry(new JarEntry(PACKAGE + name));
+                Files.copy(file.toPath(), out);
+                out.closeEntry();
+            }
+            return;
+        }
+
+        try (JarFile runtime = new JarFile(location)) {
+            Enumeration<JarEntry> entries = runtime.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!isRuntime(classes, name)) continue;
+
+                out.putNextEntry(new JarEntry(name));
+                try (InputStream in = runtime.getInputStream(entry)) {
+                    in.transferTo(out);
+                }
+                out.closeEntry();
+            }
+        }
+    }
+
+    // A class of the package other than the script's own.
+    private static boolean isRuntime(Map<String, byte[]> classes,
+                                     String name) {
+        return name.startsWith(PACKAGE) && name.endsWith(".class") &&
+            name.indexOf('/', PACKAGE.length()) == -1 &&
+            !classes.containsKey(name.substring(0,
+                name.length() - ".class".length()));
+    }
+
+    private static void constructor(ClassFile file) {
+        ClassFile.Code init = file.method(ClassFile.ACC_PUBLIC, "<init>",
+            "()V");
+        init.local(ClassFile.ALOAD, 0);
+        init.invoke(ClassFile.INVOKESPECIAL, OBJECT, "<init>", "()V");
+        init.op(ClassFile.RETURN, 0);
+    }
+
+    // Emits the run method of a script or function: copies the receiver
+    // and parameters out of the frame, starts every other local out nil
+    // so the verifier sees each one assigned, then runs the body.
+    private void run(ClassFile file, List<Stmt> body, int frameSize,
+                     int parameters) {
+        ClassFile.Code enclosingCode = code;
+        int enclosingNext = nextLocal;
+        ClassFile.Label enclosingExit = loopExit;
+        code = file.method(ClassFile.ACC_PUBLIC, "run", RUN);
+        nextLocal = 3 + frameSize;
+        loopExit = null;
+
+        for (int slot = 0; slot < frameSize; slot++) {
+            if (slot < parameters) {
+                code.local(ClassFile.ALOAD, 1);
+                code.pushInt(slot);
+                code.op(ClassFile.AALOAD, -1);
+            } else {
+                code.op(ClassFile.ACONST_NULL, 1);
+            }
+            code.local(ClassFile.ASTORE, 3 + slot);
+        }
+
+        for (Stmt statement : body) {
+            statement.accept(this);
+        }
+        code.op(ClassFile.ACONST_NULL, 1);
+        code.op(ClassFile.ARETURN, -1);
+
+        code = enclosingCode;
+        nextLocal = enclosingNext;
+        loopExit = enclosingExit;
+    }
+
+    // A class of its own for a function's body, with the one instance
+    // every LumeFunction made from the declaration shares in CODE.
+    private String function(Stmt.Function function) {
+        String name = main + "$" + function.name.lexeme + "$" +
+            (++functionCount);
+        ClassFile file = new ClassFile(name);
+        int parameters = function.params.size() +
+            (function.isMethod ? 1 : 0);
+        run(file, function.body, function.frameSize, parameters);
+        constructor(file);
+
+        file.field(ClassFile.ACC_STATIC | ClassFile.ACC_FINAL, "CODE",
+            "L" + name + ";");
+        ClassFile.Code init = file.method(ClassFile.ACC_STATIC, "<clinit>",
+            "()V");
+        init.type(ClassFile.NEW, name);
+        init.op(ClassFile.DUP, 1);
+        init.invoke(ClassFile.INVOKESPECIAL, name, "<init>", "()V");
+        init.field(ClassFile.PUTSTATIC, name, "CODE", "L" + name + ";");
+        init.op(ClassFile.RETURN, 0);
+
+        classes.put(name, file.toBytes(OBJECT, CODE));
+        return name;
+    }
+
+    // Pushes the declaration, the captures and the body of a new function
+    // value, as AotRuntime.function and method take them.
+    private void closure(Stmt.Function function) {
+        String name = function(function);
+        constant(function, FUNCTION);
+
+        int count = function.captureDepths.length;
+        if (count == 0) {
+            code.getStatic(RUNTIME, "NO_CAPTURES", "[Ljava/lang/Object;");
+        } else {
+            code.pushInt(count);
+            code.type(ClassFile.ANEWARRAY, OBJECT);
+            for (int i = 0; i < count; i++) {
+                code.op(ClassFile.DUP, 1);
+                code.pushInt(i);
+                slot(function.captureDepths[i], function.captureSlots[i]);
+                code.op(ClassFile.AASTORE, -3);
+            }
+        }
+
+        code.getStatic(name, "CODE", "L" + name + ";");
+    }
+
+    private void emit(Expr expr) {
+        expr.accept(this);
+    }
+
+    private int temporary() {
+        return nextLocal++;
+    }
+
+    // Constants.
+
+    private void constant(Object value, String descriptor) {
+        String field = constantFields.get(value);
+        if (field == null) {
+            field = "K" + constants.size();
+            constantFields.put(value, field);
+            constants.add(value);
+        }
+        code.getStatic(main, field, descriptor);
+    }
+
+    private void token(Token token) {
+        constant(token, TOKEN);
+    }
+
+    // The main class's static initializer, which builds the constants in
+    // methods of CONSTANTS_PER_METHOD each to stay under the JVM's limit
+    // on the size of a method.
+    private void initializer(ClassFile file) {
+        ClassFile.Code clinit = file.method(ClassFile.ACC_STATIC,
+            "<clinit>", "()V");
+        for (int start = 0; start < constants.size();
+             start += CONSTANTS_PER_METHOD) {
+            String name = "constants" + (start / CONSTANTS_PER_METHOD);
+            clinit.invoke(ClassFile.INVOKESTATIC, main, name, "()V");
+
+            code = file.method(ClassFile.ACC_STATIC, name, "()V");
+            int end = Math.min(start + CONSTANTS_PER_METHOD,
+                constants.size());
+            for (int i = start; i < end; i++) {
+                String descriptor = build(constants.get(i));
+                file.field(ClassFile.ACC_STATIC, "K" + i, descriptor);
+                code.field(ClassFile.PUTSTATIC, main, "K" + i, descriptor);
+            }
+            code.op(ClassFile.RETURN, 0);
+        }
+        clinit.op(ClassFile.RETURN, 0);
+    }
+
+    // Pushes a new copy of a constant, returning its field's descriptor.
+    private String build(Object value) {
+        if (value instanceof Token) {
+            Token token = (Token)value;
+            code.pushString(token.type.name());
+            code.pushString(token.lexeme);
+            code.pushInt(token.line);
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "token",
+                "(Ljava/lang/String;Ljava/lang/String;I)" + TOKEN);
+            return TOKEN;
+        }
+
+        if (value instanceof Globals.Cell) {
+            code.pushString(((Globals.Cell)value).name);
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "cell",
+                "(Ljava/lang/String;)" + CELL);
+            return CELL;
+        }
+
+        if (value instanceof InlineCache) {
+            code.type(ClassFile.NEW, PACKAGE + "InlineCache");
+            code.op(ClassFile.DUP, 1);
+            code.invoke(ClassFile.INVOKESPECIAL, PACKAGE + "InlineCache",
+                "<init>", "()V");
+            return CACHE;
+        }
+
+        if (value instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function)value;
+            code.pushString(function.name.lexeme);
+            code.pushInt(function.name.line);
+            code.pushInt(function.params.size());
+            code.pushInt(function.frameSize);
+            code.pushInt(function.isMethod ? 1 : 0);
+            code.pushInt(function.captureDepths.length);
+            if (function.boxedParams == null) {
+                code.op(ClassFile.ACONST_NULL, 1);
+            } else {
+                StringBuilder boxed = new StringBuilder();
+                for (boolean param : function.boxedParams) {
+                    boxed.append(param ? '1' : '0');
+                }
+                code.pushString(boxed.toString());
+            }
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "declaration",
+                "(Ljava/lang/String;IIIZILjava/lang/String;)" + FUNCTION);
+            return FUNCTION;
+        }
+
+        if (value instanceof List) {
+            StringBuilder names = new StringBuilder();
+            for (Object name : (List<?>)value) {
+                if (names.length() > 0) names.append(',');
+                names.append(name);
+            }
+            code.pushString(names.toString());
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "names",
+                "(Ljava/lang/String;)Ljava/util/List;");
+            return "Ljava/util/List;";
+        }
+
+        if (value instanceof Long) {
+            code.pushLong((long)value);
+            code.invoke(ClassFile.INVOKESTATIC, "java/lang/Long", "valueOf",
+                "(J)Ljava/lang/Long;");
+            return VALUE;
+        }
+
+        code.pushDouble((double)value);
+        code.invoke(ClassFile.INVOKESTATIC, "java/lang/Double", "valueOf",
+            "(D)Ljava/lang/Double;");
+        return VALUE;
+    }
+
+    // Variables.
+
+    // Pushes what a frame slot or capture holds, a Box if it is boxed.
+    private void slot(int depth, int slot) {
+        if (depth == Resolver.CAPTURED) {
+            code.local(ClassFile.ALOAD, 2);
+            code.pushInt(slot);
+            code.op(ClassFile.AALOAD, -1);
+        } else {
+            code.local(ClassFile.ALOAD, 3 + slot);
+        }
+    }
+
+    private void read(Token name, int depth, int slot, boolean boxed,
+                      Globals.Cell global) {
+        if (depth == Resolver.GLOBAL) {
+            constant(global, CELL);
+            token(name);
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "get",
+                "(" + CELL + TOKEN + ")" + VALUE);
+            return;
+        }
+
+        slot(depth, slot);
+        if (boxed) {
+            code.type(ClassFile.CHECKCAST, BOX);
+            code.field(ClassFile.GETFIELD, BOX, "value", VALUE);
+        }
+    }
+
+    // Stores the value on top of the stack.
+    private void write(Token name, int depth, int slot, boolean boxed,
+                       Globals.Cell global) {
+        if (depth == Resolver.GLOBAL) {
+            constant(global, CELL);
+            token(name);
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "assign",
+                "(" + VALUE + CELL + TOKEN + ")V");
+        } else if (boxed) {
+            slot(depth, slot);
+            code.type(ClassFile.CHECKCAST, BOX);
+            code.op(ClassFile.SWAP, 0);
+            code.field(ClassFile.PUTFIELD, BOX, "value", VALUE);
+        } else {
+            code.local(ClassFile.ASTORE, 3 + slot);
+        }
+    }
+
+    // Defines a declaration's name as the value on top of the stack.
+    private void declare(int slot, Token name) {
+        if (slot == Resolver.GLOBAL) {
+            code.pushString(name.lexeme);
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "define",
+                "(" + VALUE + "Ljava/lang/String;)V");
+        } else {
+            code.local(ClassFile.ASTORE, 3 + slot);
+        }
+    }
+
+    // A new, empty Box in a frame slot.
+    private void newBox(int slot) {
+        code.type(ClassFile.NEW, BOX);
+        code.op(ClassFile.DUP, 1);
+        code.op(ClassFile.ACONST_NULL, 1);
+        code.invoke(ClassFile.INVOKESPECIAL, BOX, "<init>", "(" + VALUE + ")V");
+        code.local(ClassFile.ASTORE, 3 + slot);
+    }
+
+    // Statements.
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        emit(stmt.expression);
+        code.op(ClassFile.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        emit(stmt.expression);
+        code.pushInt(stmt.printType.type != TokenType.PRINT ? 1 : 0);
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "print",
+            "(" + VALUE + "Z)V");
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.boxed) {
+            code.type(ClassFile.NEW, BOX);
+            code.op(ClassFile.DUP, 1);
+        }
+
+        if (stmt.initializer != null) {
+            emit(stmt.initializer);
+        } else {
+            code.op(ClassFile.ACONST_NULL, 1);
+        }
+
+        if (stmt.boxed) {
+            code.invoke(ClassFile.INVOKESPECIAL, BOX, "<init>",
+                "(" + VALUE + ")V");
+        }
+        declare(stmt.slot, stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        // A local function that calls itself captures its own box.
+        if (stmt.boxed) newBox(stmt.slot);
+
+        closure(stmt);
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "function",
+            "(" + FUNCTION + "[Ljava/lang/Object;L" + CODE + ";)" +
+            LUME_FUNCTION);
+
+        if (stmt.boxed) {
+            write(stmt.name, 0, stmt.slot, true, null);
+        } else {
+            declare(stmt.slot, stmt.name);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        int superclass = temporary();
+        int methods = temporary();
+
+        if (stmt.superclass != null) {
+            emit(stmt.superclass);
+            token(stmt.superclass.name);
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "superclass",
+                "(" + VALUE + TOKEN + ")" + CLASS);
+        } else {
+            code.op(ClassFile.ACONST_NULL, 1);
+        }
+        code.local(ClassFile.ASTORE, superclass);
+
+        if (stmt.boxed) newBox(stmt.slot);
+
+        if (stmt.superclass != null) {
+            code.local(ClassFile.ALOAD, superclass);
+            constant(stmt.superMethods, "Ljava/util/List;");
+            code.invoke(ClassFile.INVOKEVIRTUAL, PACKAGE + "LumeClass",
+                "findMethods",
+                "(Ljava/util/List;)[LlumeProject/lume/LumeFunction;");
+            code.local(ClassFile.ASTORE, 3 + stmt.superSlot);
+        }
+
+        code.local(ClassFile.ALOAD, superclass);
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "methods",
+            "(" + CLASS + ")Ljava/util/Map;");
+        code.local(ClassFile.ASTORE, methods);
+
+        for (Stmt.Function method : stmt.methods) {
+            code.local(ClassFile.ALOAD, methods);
+            closure(method);
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "method",
+                "(Ljava/util/Map;" + FUNCTION + "[Ljava/lang/Object;L" +
+                CODE + ";)V");
+        }
+
+        code.pushString(stmt.name.lexeme);
+        code.local(ClassFile.ALOAD, superclass);
+        code.local(ClassFile.ALOAD, methods);
+        constant(stmt.fieldNames, "Ljava/util/List;");
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "klass",
+            "(Ljava/lang/String;" + CLASS + "Ljava/util/Map;" +
+            "Ljava/util/List;)" + CLASS);
+
+        if (stmt.boxed) {
+            write(stmt.name, 0, stmt.slot, true, null);
+        } else {
+            declare(stmt.slot, stmt.name);
+        }
+
+        nextLocal -= 2;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        ClassFile.Label otherwise = new ClassFile.Label();
+        jump(stmt.condition, false, otherwise);
+        stmt.thenBranch.accept(this);
+
+        if (stmt.elseBranch == null) {
+            code.place(otherwise);
+            return null;
+        }
+
+        ClassFile.Label end = new ClassFile.Label();
+        code.jump(ClassFile.GOTO, end);
+        code.place(otherwise);
+        stmt.elseBranch.accept(this);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        loop(stmt.condition, stmt.body, null);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (stmt.initializer != null) stmt.initializer.accept(this);
+        loop(stmt.condition, stmt.body, stmt.increment);
+        return null;
+    }
+
+    private void loop(Expr condition, Stmt body, Expr increment) {
+        ClassFile.Label start = new ClassFile.Label();
+        ClassFile.Label exit = new ClassFile.Label();
+        ClassFile.Label enclosing = loopExit;
+        loopExit = exit;
+
+        code.place(start);
+        if (condition != null) jump(condition, false, exit);
+        body.accept(this);
+        if (increment != null) {
+            emit(increment);
+            code.op(ClassFile.POP, -1);
+        }
+        code.jump(ClassFile.GOTO, start);
+        code.place(exit);
+
+        loopExit = enclosing;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        code.jump(ClassFile.GOTO, loopExit);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            emit(stmt.value);
+        } else {
+            code.op(ClassFile.ACONST_NULL, 1);
+        }
+        code.op(ClassFile.ARETURN, -1);
+        return null;
+    }
+
+    // Conditions.
+
+    // Jumps to the label if the truth of the expression is when, and
+    // falls through otherwise. Comparisons, !, and and or jump on their
+    // parts without making a Boolean.
+    private void jump(Expr expr, boolean when, ClassFile.Label label) {
+        if (expr instanceof Expr.Grouping) {
+            jump(((Expr.Grouping)expr).expression, when, label);
+        } else if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            boolean or = logical.operator.type == TokenType.OR;
+            if (or == when) {
+                jump(logical.left, when, label);
+                jump(logical.right, when, label);
+            } else {
+                ClassFile.Label skip = new ClassFile.Label();
+                jump(logical.left, !when, skip);
+                jump(logical.right, when, label);
+                code.place(skip);
+            }
+        } else if (expr instanceof Expr.Unary &&
+                   ((Expr.Unary)expr).operator.type == TokenType.BANG) {
+            jump(((Expr.Unary)expr).right, !when, label);
+        } else if (expr instanceof Expr.Binary &&
+                   isComparison(((Expr.Binary)expr).operator.type)) {
+            compare((Expr.Binary)expr);
+            code.jump(when ? ClassFile.IFNE : ClassFile.IFEQ, label);
+        } else {
+            emit(expr);
+            code.invoke(ClassFile.INVOKESTATIC, INTERPRETER, "isTruthy",
+                "(" + VALUE + ")Z");
+            code.jump(when ? ClassFile.IFNE : ClassFile.IFEQ, label);
+        }
+    }
+
+    private static boolean isComparison(TokenType operator) {
+        switch (operator) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Pushes the result of a comparison as 0 or 1.
+    private void compare(Expr.Binary expr) {
+        TokenType operator = expr.operator.type;
+        if (operator == TokenType.EQUAL_EQUAL ||
+            operator == TokenType.BANG_EQUAL) {
+            emit(expr.left);
+            emit(expr.right);
+            code.invoke(ClassFile.INVOKESTATIC, INTERPRETER, "isEqual",
+                "(" + VALUE + VALUE + ")Z");
+            if (operator == TokenType.BANG_EQUAL) {
+                code.pushInt(1);
+                code.op(ClassFile.IXOR, -1);
+            }
+            return;
+        }
+
+        token(expr.operator);
+        emit(expr.left);
+        emit(expr.right);
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, operation(operator),
+            BINARY + "Z");
+    }
+
+    private void bool() {
+        code.invoke(ClassFile.INVOKESTATIC, "java/lang/Boolean", "valueOf",
+            "(Z)Ljava/lang/Boolean;");
+    }
+
+    private static String operation(TokenType operator) {
+        switch (operator) {
+            case PLUS: return "add";
+            case MINUS: return "subtract";
+            case STAR: return "multiply";
+            case SLASH: return "divide";
+            case PERCENT: return "modulo";
+            case GREATER: return "greater";
+            case GREATER_EQUAL: return "greaterEqual";
+            case LESS: return "less";
+            case LESS_EQUAL: return "lessEqual";
+            default: return null;
+        }
+    }
+
+    // Expressions, each leaving its value on the stack.
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        emit(expr.value);
+        code.op(ClassFile.DUP, 1);
+        write(expr.name, expr.depth, expr.slot, expr.boxed, expr.global);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        TokenType operator = expr.operator.type;
+        if (isComparison(operator)) {
+            compare(expr);
+            bool();
+            return null;
+        }
+
+        String operation = operation(operator);
+        token(expr.operator);
+        emit(expr.left);
+        emit(expr.right);
+        if (operation != null) {
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, operation,
+                BINARY + VALUE);
+        } else {
+            // The bitwise operators.
+            code.invoke(ClassFile.INVOKESTATIC, PACKAGE + "Numbers",
+                "binary", BINARY + VALUE);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        emit(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        int count = expr.arguments.size();
+
+        // obj.method(...) and super.method(...) pass the receiver straight
+        // into the method's frame, as the ClosureCompiler does.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            emit(get.object);
+            token(get.name);
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "properties",
+                "(" + VALUE + TOKEN + ")" + INSTANCE);
+            code.op(ClassFile.DUP, 1);
+            constant(expr.cache, CACHE);
+            token(get.name);
+            code.pushInt(count);
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "method",
+                "(" + INSTANCE + CACHE + TOKEN + "I)" + VALUE);
+            arguments(expr, "invoke", INSTANCE + VALUE);
+            return null;
+        }
+
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super target = (Expr.Super)expr.callee;
+            slot(target.thisDepth, target.thisSlot);
+            code.type(ClassFile.CHECKCAST, PACKAGE + "LumeInstance");
+            slot(target.depth, target.slot);
+            code.pushInt(target.index);
+            token(target.method);
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "superMethod",
+                "(" + VALUE + "I" + TOKEN + ")" + LUME_FUNCTION);
+            arguments(expr, "invoke", INSTANCE + VALUE);
+            return null;
+        }
+
+        emit(expr.callee);
+        arguments(expr, "call", VALUE);
+        return null;
+    }
+
+    // Pushes the arguments and calls the runtime's call or invoke for
+    // their count, which takes the callee, and for invoke the receiver,
+    // first.
+    private void arguments(Expr.Call expr, String name, String callee) {
+        int count = expr.arguments.size();
+        if (count <= 3) {
+            StringBuilder descriptor = new StringBuilder("(" + callee);
+            for (Expr argument : expr.arguments) {
+                emit(argument);
+                descriptor.append(VALUE);
+            }
+            token(expr.paren);
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, name + count,
+                descriptor + TOKEN + ")" + VALUE);
+            return;
+        }
+
+        code.pushInt(count);
+        code.type(ClassFile.ANEWARRAY, OBJECT);
+        for (int i = 0; i < count; i++) {
+            code.op(ClassFile.DUP, 1);
+            code.pushInt(i);
+            emit(expr.arguments.get(i));
+            code.op(ClassFile.AASTORE, -3);
+        }
+        token(expr.paren);
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, name,
+            "(" + callee + "[Ljava/lang/Object;" + TOKEN + ")" + VALUE);
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        emit(expr.object);
+        token(expr.name);
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "fields",
+            "(" + VALUE + TOKEN + ")" + INSTANCE);
+        emit(expr.value);
+        constant(expr.cache, CACHE);
+        token(expr.name);
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "set",
+            "(" + INSTANCE + VALUE + CACHE + TOKEN + ")" + VALUE);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        slot(expr.depth, expr.slot);
+        code.pushInt(expr.index);
+        token(expr.method);
+        slot(expr.thisDepth, expr.thisSlot);
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "superGet",
+            "(" + VALUE + "I" + TOKEN + VALUE + ")" + VALUE);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        emit(expr.object);
+        constant(expr.cache, CACHE);
+        token(expr.name);
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "get",
+            "(" + VALUE + CACHE + TOKEN + ")" + VALUE);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        slot(expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value == null) {
+            code.op(ClassFile.ACONST_NULL, 1);
+        } else if (value instanceof Boolean) {
+            code.getStatic("java/lang/Boolean",
+                (boolean)value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        } else if (value instanceof String) {
+            code.pushString((String)value);
+        } else {
+            constant(value, VALUE);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        ClassFile.Label end = new ClassFile.Label();
+        emit(expr.left);
+        code.op(ClassFile.DUP, 1);
+        code.invoke(ClassFile.INVOKESTATIC, INTERPRETER, "isTruthy",
+            "(" + VALUE + ")Z");
+        code.jump(expr.operator.type == TokenType.OR
+            ? ClassFile.IFNE : ClassFile.IFEQ, end);
+        code.op(ClassFile.POP, -1);
+        emit(expr.right);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        switch (expr.operator.type) {
+            case MINUS:
+                token(expr.operator);
+                emit(expr.right);
+                code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "negate",
+                    "(" + TOKEN + VALUE + ")" + VALUE);
+                return null;
+            case BANG: {
+                ClassFile.Label no = new ClassFile.Label();
+                ClassFile.Label end = new ClassFile.Label();
+                jump(expr.right, true, no);
+                code.getStatic("java/lang/Boolean", "TRUE",
+                    "Ljava/lang/Boolean;");
+                code.jump(ClassFile.GOTO, end);
+                code.place(no);
+                code.getStatic("java/lang/Boolean", "FALSE",
+                    "Ljava/lang/Boolean;");
+                code.place(end);
+                return null;
+            }
+            default:
+                step(expr.right, expr.operator, false);
+                return null;
+        }
+    }
+
+    @Override
+    public Void visitPostfixExpr(Expr.Postfix expr) {
+        step(expr.left, expr.operator, true);
+        return null;
+    }
+
+    // ++ or -- on a variable; the postfix form yields the old value.
+    private void step(Expr operand, Token operator, boolean postfix) {
+        emit(operand);
+        if (!(operand instanceof Expr.Variable)) {
+            // The operand still runs before the error, as in the
+            // Interpreter.
+            code.op(ClassFile.POP, -1);
+            token(operator);
+            code.pushString("Operand of '" + operator.lexeme +
+                "' must be a variable or field.");
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "error",
+                "(" + TOKEN + "Ljava/lang/String;)" +
+                "LlumeProject/lume/RuntimeError;");
+            code.op(ClassFile.ATHROW, -1);
+            code.op(ClassFile.ACONST_NULL, 1);
+            return;
+        }
+
+        if (postfix) code.op(ClassFile.DUP, 1);
+        code.pushLong(operator.type == TokenType.PLUS_PLUS ? 1 : -1);
+        token(operator);
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "step",
+            "(" + VALUE + "J" + TOKEN + ")" + VALUE);
+        if (!postfix) code.op(ClassFile.DUP, 1);
+
+        Expr.Variable variable = (Expr.Variable)operand;
+        write(variable.name, variable.depth, variable.slot, variable.boxed,
+            variable.global);
+    }
+
+    // Compound assignment and ++/-- on a field: the object is evaluated
+    // once, and the field's old value read before the operand.
+    @Override
+    public Void visitUpdateExpr(Expr.Update expr) {
+        emit(expr.object);
+        token(expr.name);
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "fields",
+            "(" + VALUE + TOKEN + ")" + INSTANCE);
+
+        TokenType operator = expr.operator.type;
+        if (operator == TokenType.PLUS_PLUS ||
+            operator == TokenType.MINUS_MINUS) {
+            constant(expr.cache, CACHE);
+            token(expr.name);
+            token(expr.operator);
+            code.pushInt(expr.postfix ? 1 : 0);
+            code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "step",
+                "(" + INSTANCE + CACHE + TOKEN + TOKEN + "Z)" + VALUE);
+            return null;
+        }
+
+        code.op(ClassFile.DUP, 1);
+        constant(expr.cache, CACHE);
+        token(expr.name);
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "field",
+            "(" + INSTANCE + CACHE + TOKEN + ")" + VALUE);
+        emit(expr.value);
+        constant(expr.cache, CACHE);
+        token(expr.name);
+        token(expr.operator);
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, "update",
+            "(" + INSTANCE + VALUE + VALUE + CACHE + TOKEN + TOKEN + ")" +
+            VALUE);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        read(expr.name, expr.depth, expr.slot, expr.boxed, expr.global);
+        return null;
+    }
+}
@@ -0,0 +1,479 @@
+package lumeProject.lume;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The support library of scripts compiled by AotCompiler. Compiled code
+// keeps control flow and locals to itself and calls these for every
+// operation with more than one case, each doing what the ClosureCompiler
+// does for the same node. The Interpreter is only here for its globals,
+// its natives and its output.
+final class AotRuntime {
+    private AotRuntime() {}
+
+    static final Interpreter interpreter = new Interpreter();
+    static final Object[] NO_CAPTURES = new Object[0];
+
+    // Runs a script's top-level code and ends the way Lume.runFile does.
+    static void main(ClosureCompiler.Code script) {
+        try {
+            script.run(NO_CAPTURES, NO_CAPTURES);
+        } catch (RuntimeError error) {
+            interpreter.out.flush();
+            Lume.runtimeError(error);
+        } finally {
+            interpreter.out.flush();
+        }
+
+        System.out.println("");
+        if (Lume.hadRuntimeError) System.exit(70);
+    }
+
+    // Building the constants of a compiled script.
+
+    static Token token(String type, String lexeme, int line) {
+        return new Token(TokenType.valueOf(type), lexeme, null, line);
+    }
+
+    static Globals.Cell cell(String name) {
+        return interpreter.globals.cell(name);
+    }
+
+    static List<String> names(String names) {
+        if (names.isEmpty()) return Collections.emptyList();
+        return Arrays.asList(names.split(","));
+    }
+
+    // What LumeFunction needs of a declaration; the body is compiled
+    // code instead. boxedParams has a '1' for each boxed parameter.
+    static Stmt.Function declaration(String name, int line, int arity,
+                                     int frameSize, boolean isMethod,
+                                     int captureCount, String boxedParams) {
+        Token token = new Token(TokenType.IDENTIFIER, name, null, line);
+        Stmt.Function declaration = new Stmt.Function(token,
+            Collections.nCopies(arity, token), Collections.emptyList());
+        declaration.frameSize = frameSize;
+        declaration.isMethod = isMethod;
+        declaration.captureDepths = new int[captureCount];
+        declaration.captureSlots = new int[captureCount];
+
+        if (boxedParams != null) {
+            declaration.boxedParams = new boolean[arity];
+            for (int i = 0; i < arity; i++) {
+                declaration.boxedParams[i] = boxedParams.charAt(i) == '1';
+            }
+        }
+
+        return declaration;
+    }
+
+    // Statements.
+
+    static void print(Object value, boolean newline) {
+        interpreter.print(value, newline);
+    }
+
+    static void define(Object value, String name) {
+        interpreter.globals.define(name, value);
+    }
+
+    static Object get(Globals.Cell cell, Token name) {
+        Object value = cell.value;
+        if (value == Globals.UNDEFINED) {
+            return interpreter.globals.get(cell, name);
+        }
+        return value;
+    }
+
+    static void assign(Object value, Globals.Cell cell, Token name) {
+        interpreter.globals.assign(cell, name, value);
+    }
+
+    static LumeFunction function(Stmt.Function declaration,
+                                 Object[] captures,
+                                 ClosureCompiler.Code code) {
+        return new LumeFunction(declaration, captures, false, code);
+    }
+
+    static LumeClass superclass(Object value, Token name) {
+        if (!(value instanceof LumeClass)) {
+            throw new RuntimeError(name, "Superclass must be a class.");
+        }
+        return (LumeClass)value;
+    }
+
+    static Map<String, LumeFunction> methods(LumeClass superclass) {
+        Map<String, LumeFunction> methods = new HashMap<>();
+        if (superclass != null) methods.putAll(superclass.methods);
+        return methods;
+    }
+
+    static void method(Map<String, LumeFunction> methods,
+                       Stmt.Function declaration, Object[] captures,
+                       ClosureCompiler.Code code) {
+        String name = declaration.name.lexeme;
+        methods.put(name, new LumeFunction(declaration, captures,
+            name.equals("init"), code));
+    }
+
+    static LumeClass klass(String name, LumeClass superclass,
+                           Map<String, LumeFunction> methods,
+                           List<String> fieldNames) {
+        return new LumeClass(name, superclass, methods, fieldNames);
+    }
+
+    static RuntimeError error(Token token, String message) {
+        return new RuntimeError(token, message);
+    }
+
+    // Operators.
+
+    static Object add(Token operator, Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) {
+            long x = (long)a;
+            long y = (long)b;
+            if (Numbers.addIsExact(x, y)) return x + y;
+        }
+        if (a instanceof Double && b instanceof Double) {
+            return (double)a + (double)b;
+        }
+        if (Rope.isString(a) && Rope.isString(b)) {
+            return Rope.concat(a, b);
+        }
+        return Interpreter.add(operator, a, b);
+    }
+
+    static Object subtract(Token operator, Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) {
+            long x = (long)a;
+            long y = (long)b;
+            if (Numbers.subtractIsExact(x, y)) return x - y;
+        }
+        return arithmetic(operator, a, b);
+    }
+
+    static Object multiply(Token operator, Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) {
+            long x = (long)a;
+            long y = (long)b;
+            if (Numbers.multiplyIsExact(x, y)) return x * y;
+        }
+        return arithmetic(operator, a, b);
+    }
+
+    static Object divide(Token operator, Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) {
+            long x = (long)a;
+            long y = (long)b;
+            if (Numbers.divideIsExact(x, y)) return x / y;
+        }
+        return arithmetic(operator, a, b);
+    }
+
+    static Object modulo(Token operator, Object a, Object b) {
+        if (a instanceof Long && b instanceof Long && (long)b != 0) {
+            return (long)a % (long)b;
+        }
+        return arithmetic(operator, a, b);
+    }
+
+    private static Object arithmetic(Token operator, Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) {
+            double x = (double)a;
+            double y = (double)b;
+            switch (operator.type) {
+                case PLUS: return x + y;
+                case MINUS: return x - y;
+                case STAR: return x * y;
+                case SLASH: return x / y;
+                default: break;
+            }
+        }
+
+        return Numbers.binary(operator, a, b);
+    }
+
+    static boolean greater(Token operator, Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) return (long)a > (long)b;
+        return compare(operator, a, b);
+    }
+
+    static boolean greaterEqual(Token operator, Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) return (long)a >= (long)b;
+        return compare(operator, a, b);
+    }
+
+    static boolean less(Token operator, Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) return (long)a < (long)b;
+        return compare(operator, a, b);
+    }
+
+    static boolean lessEqual(Token operator, Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) return (long)a <= (long)b;
+        return compare(operator, a, b);
+    }
+
+    private static boolean compare(Token operator, Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) {
+            return Numbers.compare(operator.type, (double)a, (double)b);
+        }
+        return (boolean)Numbers.binary(operator, a, b);
+    }
+
+    static Object negate(Token operator, Object value) {
+        Interpreter.checkNumberOperand(operator, value);
+        return Numbers.negate(value);
+    }
+
+    static Object step(Object value, long step, Token operator) {
+        Interpreter.checkNumberOperand(operator, value);
+        return Numbers.step(value, step);
+    }
+
+    // Calls. A callee with the right arity gets its arguments straight in
+    // its frame; anything else goes through call, which reports what is
+    // wrong with it.
+
+    static Object call(Object callee, Object[] arguments, Token paren) {
+        int count = arguments.length;
+        if (callee instanceof LumeFunction) {
+            LumeFunction function = (LumeFunction)callee;
+            if (function.arity() == count) {
+                Object[] frame = function.newFrame();
+                System.arraycopy(arguments, 0, frame,
+                    function.firstParameterSlot(), count);
+                return function.invoke(interpreter, frame);
+            }
+        }
+
+        if (!(callee instanceof LumeCallable)) {
+            throw new RuntimeError(paren,
+                "Can only call functions and classes.");
+        }
+
+        LumeCallable function = (LumeCallable)callee;
+        if (count != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+                function.arity() + " arguments but got " + count + ".");
+        }
+
+        return function.call(interpreter, arguments);
+    }
+
+    static Object call0(Object callee, Token paren) {
+        if (callee instanceof LumeFunction) {
+            LumeFunction function = (LumeFunction)callee;
+            if (function.arity() == 0) {
+                return function.invoke(interpreter, function.newFrame());
+            }
+        }
+        return call(callee, LumeCallable.NO_ARGUMENTS, paren);
+    }
+
+    static Object call1(Object callee, Object a, Token paren) {
+        if (callee instanceof LumeFunction) {
+            LumeFunction function = (LumeFunction)callee;
+            if (function.arity() == 1) {
+                Object[] frame = function.newFrame();
+                frame[function.firstParameterSlot()] = a;
+                return function.invoke(interpreter, frame);
+            }
+        }
+        return call(callee, new Object[] { a }, paren);
+    }
+
+    static Object call2(Object callee, Object a, Object b, Token paren) {
+        if (callee instanceof LumeFunction) {
+            LumeFunction function = (LumeFunction)callee;
+            if (function.arity() == 2) {
+                Object[] frame = function.newFrame();
+                int slot = function.firstParameterSlot();
+                frame[slot] = a;
+                frame[slot + 1] = b;
+                return function.invoke(interpreter, frame);
+            }
+        }
+        return call(callee, new Object[] { a, b }, paren);
+    }
+
+    static Object call3(Object callee, Object a, Object b, Object c,
+                        Token paren) {
+        if (callee instanceof LumeFunction) {
+            LumeFunction function = (LumeFunction)callee;
+            if (function.arity() == 3) {
+                Object[] frame = function.newFrame();
+                int slot = function.firstParameterSlot();
+                frame[slot] = a;
+                frame[slot + 1] = b;
+                frame[slot + 2] = c;
+                return function.invoke(interpreter, frame);
+            }
+        }
+        return call(callee, new Object[] { a, b, c }, paren);
+    }
+
+    // obj.method(...) and super.method(...) run the method with the
+    // receiver in its frame instead of binding it first. The callee is
+    // the method when method() or superMethod() found one, or else any
+    // property value, which is called as usual.
+
+    static LumeInstance properties(Object object, Token name) {
+        if (object instanceof LumeInstance) return (LumeInstance)object;
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    static Object method(LumeInstance instance, InlineCache cache,
+                         Token name, int count) {
+        LumeFunction method = cache.method(instance, name.lexeme);
+        if (method != null && method.arity() == count) return method;
+        return instance.get(name);
+    }
+
+    // Only methods found for a receiver reach compiled code unbound.
+    private static boolean isUnbound(Object callee) {
+        if (!(callee instanceof LumeFunction)) return false;
+        LumeFunction function = (LumeFunction)callee;
+        return function.receiver == null && function.declaration.isMethod;
+    }
+
+    static Object invoke(LumeInstance receiver, Object callee,
+                         Object[] arguments, Token paren) {
+        if (isUnbound(callee)) {
+            LumeFunction method = (LumeFunction)callee;
+            if (method.arity() != arguments.length) {
+                return call(method.bind(receiver), arguments, paren);
+            }
+
+            Object[] frame = method.newFrame(receiver);
+            System.arraycopy(arguments, 0, frame, 1, arguments.length);
+            return method.invoke(interpreter, frame);
+        }
+        return call(callee, arguments, paren);
+    }
+
+    static Object invoke0(LumeInstance receiver, Object callee,
+                          Token paren) {
+        if (isUnbound(callee)) {
+            LumeFunction method = (LumeFunction)callee;
+            if (method.arity() == 0) {
+                return method.invoke(interpreter, method.newFrame(receiver));
+            }
+        }
+        return invoke(receiver, callee, LumeCallable.NO_ARGUMENTS, paren);
+    }
+
+    static Object invoke1(LumeInstance receiver, Object callee, Object a,
+                          Token paren) {
+        if (isUnbound(callee)) {
+            LumeFunction method = (LumeFunction)callee;
+            if (method.arity() == 1) {
+                Object[] frame = method.newFrame(receiver);
+                frame[1] = a;
+                return method.invoke(interpreter, frame);
+            }
+        }
+        return invoke(receiver, callee, new Object[] { a }, paren);
+    }
+
+    static Object invoke2(LumeInstance receiver, Object callee, Object a,
+                          Object b, Token paren) {
+        if (isUnbound(callee)) {
+            LumeFunction method = (LumeFunction)callee;
+            if (method.arity() == 2) {
+                Object[] frame = method.newFrame(receiver);
+                frame[1] = a;
+                frame[2] = b;
+                return method.invoke(interpreter, frame);
+            }
+        }
+        return invoke(receiver, callee, new Object[] { a, b }, paren);
+    }
+
+    static Object invoke3(LumeInstance receiver, Object callee, Object a,
+                          Object b, Object c, Token paren) {
+        if (isUnbound(callee)) {
+            LumeFunction method = (LumeFunction)callee;
+            if (method.arity() == 3) {
+                Object[] frame = method.newFrame(receiver);
+                frame[1] = a;
+                frame[2] = b;
+                frame[3] = c;
+                return method.invoke(interpreter, frame);
+            }
+        }
+        return invoke(receiver, callee, new Object[] { a, b, c }, paren);
+    }
+
+    static LumeFunction superMethod(Object table, int index, Token name) {
+        LumeFunction method = ((LumeFunction[])table)[index];
+        if (method == null) {
+            throw new RuntimeError(name,
+                "Undefined property '" + name.lexeme + "'.");
+        }
+        return method;
+    }
+
+    static Object superGet(Object table, int index, Token name,
+                           Object self) {
+        return superMethod(table, index, name).bind((LumeInstance)self);
+    }
+
+    // Properties.
+
+    static Object get(Object object, InlineCache cache, Token name) {
+        if (object instanceof LumeInstance) {
+            return cache.get((LumeInstance)object, name);
+        }
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    static LumeInstance fields(Object object, Token name) {
+        if (object instanceof LumeInstance) return (LumeInstance)object;
+        throw new RuntimeError(name, "Only instances have fields.");
+    }
+
+    static Object set(LumeInstance instance, Object value, InlineCache cache,
+                      Token name) {
+        cache.set(instance, name, value);
+        return value;
+    }
+
+    // The old value of a field a compound assignment updates.
+    static Object field(LumeInstance instance, InlineCache cache,
+                        Token name) {
+        int slot = cache.slot(instance, name);
+        return (slot == -1) ? instance.get(name) : instance.values[slot];
+    }
+
+    static Object update(LumeInstance instance, Object old, Object value,
+                         InlineCache cache, Token name, Token operator) {
+        Object updated = (operator.type == TokenType.PLUS)
+            ? Interpreter.add(operator, old, value)
+            : Numbers.binary(operator, old, value);
+        store(instance, updated, cache, name);
+        return updated;
+    }
+
+    static Object step(LumeInstance instance, InlineCache cache, Token name,
+                       Token operator, boolean postfix) {
+        Object old = field(instance, cache, name);
+        Interpreter.checkNumberOperand(operator, old);
+        Object updated = Numbers.step(old,
+            (operator.type == TokenType.PLUS_PLUS) ? 1 : -1);
+        store(instance, updated, cache, name);
+        return postfix ? old : updated;
+    }
+
+    private static void store(LumeInstance instance, Object value,
+                              InlineCache cache, Token name) {
+        int slot = cache.slot(instance, name);
+        if (slot == -1) {
+            cache.set(instance, name, value);
+        } else {
+            instance.values[slot] = value;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package lumeProject.lume;
+
+import java.util.List;
+
+// Runs resolved statements. Every backend works on the Interpreter's
+// globals and natives, so the global cells and top-level frame size the
+// Resolver records hold for all of them.
+interface Backend {
+    void interpret(List<Stmt> statements);
+}
@@ -0,0 +1,12 @@
+package lumeProject.lume;
+
+// Shares a local that is both captured by a closure and assigned, so the
+// frame that declared it and every closure that captured it see the same
+// value.
+class Box {
+    Object value;
+
+    Box(Object value) {
+        this.value = value;
+    }
+}
@@ -1,7 +0,0 @@
-package lumeProject.lume;
-
-class Break extends RuntimeException {
-    Break() {
-        super(null, null, false, false);
-    }
-}
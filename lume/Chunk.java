@@ -0,0 +1,83 @@
+package lumeProject.lume;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The bytecode of one function body, or of the top-level statements, with
+// its constant pool. Instructions that can fail have the token to report
+// stored at their offset in tokens.
+final class Chunk {
+    // Null for the top-level statements.
+    final Stmt.Function function;
+    final boolean isInitializer;
+
+    byte[] code = new byte[64];
+    Token[] tokens = new Token[64];
+    int count = 0;
+    Object[] constants;
+    // The most values the body's expressions hold on the stack at once.
+    int maxStack = 0;
+
+    private final List<Object> pool = new ArrayList<>();
+    private final Map<Object, Integer> indexes = new IdentityHashMap<>();
+
+    Chunk(Stmt.Function function, boolean isInitializer) {
+        this.function = function;
+        this.isInitializer = isInitializer;
+    }
+
+    int frameSize(int topLevelFrameSize) {
+        if (function == null) return topLevelFrameSize;
+        return function.frameSize;
+    }
+
+    void write(int value, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+        }
+
+        tokens[count] = token;
+        code[count++] = (byte)value;
+    }
+
+    void writeShort(int value) {
+        write(value >> 8, null);
+        write(value, null);
+    }
+
+    void writeInt(int value) {
+        writeShort(value >> 16);
+        writeShort(value);
+    }
+
+    void patchInt(int at, int value) {
+        code[at] = (byte)(value >> 24);
+        code[at + 1] = (byte)(value >> 16);
+        code[at + 2] = (byte)(value >> 8);
+        code[at + 3] = (byte)value;
+    }
+
+    // Constants compare by identity, so each AST node keeps its own entry.
+    // Instructions name them with a 16-bit operand.
+    int addConstant(Object value) {
+        Integer index = indexes.get(value);
+        if (index != null) return index;
+        if (pool.size() == 65536) {
+            throw new IllegalStateException("Too many constants.");
+        }
+
+        pool.add(value);
+        indexes.put(value, pool.size() - 1);
+        return pool.size() - 1;
+    }
+
+    void finish() {
+        code = Arrays.copyOf(code, count);
+        tokens = Arrays.copyOf(tokens, count);
+        constants = pool.toArray();
+    }
+}
@@ -0,0 +1,478 @@
+package lumeProject.lume;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of the JVM class file format for the JIT and AotCompiler: a
+// constant pool, static fields, and methods whose code is assembled with
+// labels while the stack depth is tracked. Classes are written as version 49, whose
+// verifier infers the types of locals and stack entries by itself, so no
+// StackMapTable has to be computed.
+final class ClassFile {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ACONST_NULL = 1;
+    static final int ICONST_0 = 3;
+    static final int ICONST_1 = 4;
+    static final int LCONST_0 = 9;
+    static final int LCONST_1 = 10;
+    static final int DCONST_0 = 14;
+    static final int DCONST_1 = 15;
+    static final int BIPUSH = 16;
+    static final int SIPUSH = 17;
+    static final int LDC_W = 19;
+    static final int LDC2_W = 20;
+    static final int ILOAD = 21;
+    static final int LLOAD = 22;
+    static final int DLOAD = 24;
+    static final int ALOAD = 25;
+    static final int AALOAD = 50;
+    static final int ISTORE = 54;
+    static final int LSTORE = 55;
+    static final int DSTORE = 57;
+    static final int ASTORE = 58;
+    static final int AASTORE = 83;
+    static final int POP = 87;
+    static final int POP2 = 88;
+    static final int DUP = 89;
+    static final int DUP2 = 92;
+    static final int SWAP = 95;
+    static final int DADD = 99;
+    static final int DSUB = 103;
+    static final int DMUL = 107;
+    static final int DDIV = 111;
+    static final int LREM = 113;
+    static final int DREM = 115;
+    static final int DNEG = 119;
+    static final int LSHL = 121;
+    static final int LSHR = 123;
+    static final int LAND = 127;
+    static final int LOR = 129;
+    static final int IXOR = 130;
+    static final int L2I = 136;
+    static final int L2D = 138;
+    static final int LCMP = 148;
+    static final int DCMPL = 151;
+    static final int DCMPG = 152;
+    static final int IFEQ = 153;
+    static final int IFNE = 154;
+    static final int IFLT = 155;
+    static final int IFGE = 156;
+    static final int IFGT = 157;
+    static final int IFLE = 158;
+    static final int IF_ICMPEQ = 159;
+    static final int IF_ICMPNE = 160;
+    static final int GOTO = 167;
+    static final int IRETURN = 172;
+    static final int LRETURN = 173;
+    static final int DRETURN = 175;
+    static final int ARETURN = 176;
+    static final int RETURN = 177;
+    static final int GETSTATIC = 178;
+    static final int PUTSTATIC = 179;
+    static final int GETFIELD = 180;
+    static final int PUTFIELD = 181;
+    static final int INVOKEVIRTUAL = 182;
+    static final int INVOKESPECIAL = 183;
+    static final int INVOKESTATIC = 184;
+    static final int NEW = 187;
+    static final int ANEWARRAY = 189;
+    static final int ATHROW = 191;
+    static final int CHECKCAST = 192;
+    static final int INSTANCEOF = 193;
+    private static final int WIDE = 196;
+
+    // A growable byte array written big-endian, as class files are.
+    private static final class Buffer {
+        byte[] bytes = new byte[256];
+        int count = 0;
+
+        void u1(int value) {
+            if (count == bytes.length) {
+                bytes = Arrays.copyOf(bytes, count * 2);
+            }
+            bytes[count++] = (byte)value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        void u8(long value) {
+            u4((int)(value >> 32));
+            u4((int)value);
+        }
+
+        void append(Buffer other) {
+            for (int i = 0; i < other.count; i++) u1(other.bytes[i]);
+        }
+    }
+
+    // A jump target. Jumps to a label not yet placed are patched when it
+    // is; the label remembers the stack depth the jumps left.
+    static final class Label {
+        private int offset = -1;
+        private int stack = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    final class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final Buffer code = new Buffer();
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        private Code(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = utf8(name);
+            this.descriptor = utf8(descriptor);
+            this.maxLocals = argumentWords(descriptor) +
+                ((access & ACC_STATIC) != 0 ? 0 : 1);
+        }
+
+        void op(int opcode, int effect) {
+            code.u1(opcode);
+            adjust(effect);
+        }
+
+        private void adjust(int effect) {
+            stack += effect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        // A load or store of a local. Long and double ones take two
+        // words of the stack and of the locals.
+        void local(int opcode, int index) {
+            boolean wide = opcode == LLOAD || opcode == DLOAD ||
+                opcode == LSTORE || opcode == DSTORE;
+            int words = wide ? 2 : 1;
+            if (index > 255) {
+                code.u1(WIDE);
+                code.u1(opcode);
+                code.u2(index);
+            } else {
+                code.u1(opcode);
+                code.u1(index);
+            }
+
+            adjust(opcode < ISTORE ? words : -words);
+            maxLocals = Math.max(maxLocals, index + words);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                code.u1(value);
+            } else if (value >= Short.MIN_VALUE &&
+                       value <= Short.MAX_VALUE) {
+                op(SIPUSH, 1);
+                code.u2(value);
+            } else {
+                op(LDC_W, 1);
+                code.u2(constant(3, Integer.toString(value), value));
+            }
+        }
+
+        void pushLong(long value) {
+            if (value == 0 || value == 1) {
+                op(LCONST_0 + (int)value, 2);
+                return;
+            }
+
+            op(LDC2_W, 2);
+            code.u2(constant(5, Long.toString(value), value));
+        }
+
+        void pushDouble(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            if (bits == 0 || value == 1.0) {
+                op(value == 0 ? DCONST_0 : DCONST_1, 2);
+                return;
+            }
+
+            op(LDC2_W, 2);
+            code.u2(constant(6, Long.toString(bits), bits));
+        }
+
+        void invoke(int opcode, String owner, String name,
+                    String descriptor) {
+            int effect = returnWords(descriptor) - argumentWords(descriptor);
+            if (opcode != INVOKESTATIC) effect--;
+            op(opcode, effect);
+            code.u2(member(10, owner, name, descriptor));
+        }
+
+        void pushString(String value) {
+            op(LDC_W, 1);
+            code.u2(string(value));
+        }
+
+        void getStatic(String owner, String name, String descriptor) {
+            field(GETSTATIC, owner, name, descriptor);
+        }
+
+        void field(int opcode, String owner, String name,
+                   String descriptor) {
+            int words = words(descriptor.charAt(0));
+            switch (opcode) {
+                case GETSTATIC: op(opcode, words); break;
+                case PUTSTATIC: op(opcode, -words); break;
+                case GETFIELD: op(opcode, words - 1); break;
+                default: op(opcode, -words - 1); break;
+            }
+            code.u2(member(9, owner, name, descriptor));
+        }
+
+        // NEW, ANEWARRAY, CHECKCAST or INSTANCEOF.
+        void type(int opcode, String className) {
+            op(opcode, opcode == NEW ? 1 : 0);
+            code.u2(classRef(className));
+        }
+
+        void jump(int opcode, Label label) {
+            int at = code.count;
+            int effect = 0;
+            if (opcode >= IFEQ && opcode <= IFLE) effect = -1;
+            if (opcode >= IF_ICMPEQ && opcode < GOTO) effect = -2;
+            op(opcode, effect);
+            label.stack = stack;
+
+            if (label.offset >= 0) {
+                code.u2(distance(at, label.offset));
+            } else {
+                label.jumps.add(at);
+                code.u2(0);
+            }
+        }
+
+        void place(Label label) {
+            label.offset = code.count;
+            if (label.stack >= 0) {
+                stack = label.stack;
+            } else {
+                label.stack = stack;
+            }
+
+            for (int at : label.jumps) {
+                int distance = distance(at, label.offset);
+                code.bytes[at + 1] = (byte)(distance >> 8);
+                code.bytes[at + 2] = (byte)distance;
+            }
+        }
+
+        private int distance(int from, int to) {
+            int distance = to - from;
+            if (distance != (short)distance) {
+                throw new IllegalStateException("Jump too far.");
+            }
+            return distance;
+        }
+    }
+
+    private final String name;
+    private final Buffer pool = new Buffer();
+    private int poolCount = 1;
+    private final Map<String, Integer> entries = new HashMap<>();
+    private final List<int[]> fields = new ArrayList<>();
+    private final List<Code> methods = new ArrayList<>();
+
+    ClassFile(String name) {
+        this.name = name;
+    }
+
+    Code method(int access, String name, String descriptor) {
+        Code method = new Code(access, name, descriptor);
+        methods.add(method);
+        return method;
+    }
+
+    void field(int access, String name, String descriptor) {
+        fields.add(new int[] { access, utf8(name), utf8(descriptor) });
+    }
+
+    byte[] toBytes(String superName, String interfaceName) {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        int interfaceClass = classRef(interfaceName);
+        int codeName = utf8("Code");
+
+        Buffer out = new Buffer();
+        out.u4(0xCAFEBABE);
+        out.u2(0);
+        out.u2(49);
+        out.u2(poolCount);
+        out.append(pool);
+        out.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(1);
+        out.u2(interfaceClass);
+
+        out.u2(fields.size());
+        for (int[] field : fields) {
+            out.u2(field[0]);
+            out.u2(field[1]);
+            out.u2(field[2]);
+            out.u2(0);
+        }
+
+        out.u2(methods.size());
+        for (Code method : methods) {
+            if (method.code.count > 65535) {
+                throw new IllegalStateException("Method too large.");
+            }
+            out.u2(method.access);
+            out.u2(method.name);
+            out.u2(method.descriptor);
+            out.u2(1);
+            out.u2(codeName);
+            out.u4(12 + method.code.count);
+            out.u2(method.maxStack);
+            out.u2(method.maxLocals);
+            out.u4(method.code.count);
+            out.append(method.code);
+            out.u2(0);
+            out.u2(0);
+        }
+
+        out.u2(0);
+        return Arrays.copyOf(out.bytes, out.count);
+    }
+
+    // In the JVM's modified UTF-8, which encodes U+0000 in two bytes.
+    private int utf8(String value) {
+        Integer index = entries.get("U" + value);
+        if (index != null) return index;
+
+        Buffer bytes = new Buffer();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x01 && c <= 0x7F) {
+                bytes.u1(c);
+            } else if (c <= 0x7FF) {
+                bytes.u1(0xC0 | (c >> 6));
+                bytes.u1(0x80 | (c & 0x3F));
+            } else {
+                bytes.u1(0xE0 | (c >> 12));
+                bytes.u1(0x80 | ((c >> 6) & 0x3F));
+                bytes.u1(0x80 | (c & 0x3F));
+            }
+        }
+        if (bytes.count > 65535) {
+            throw new IllegalStateException("String too long.");
+        }
+
+        pool.u1(1);
+        pool.u2(bytes.count);
+        pool.append(bytes);
+        return add("U" + value, 1);
+    }
+
+    private int string(String value) {
+        Integer index = entries.get("S" + value);
+        if (index != null) return index;
+
+        int utf8 = utf8(value);
+        pool.u1(8);
+        pool.u2(utf8);
+        return add("S" + value, 1);
+    }
+
+    private int classRef(String className) {
+        Integer index = entries.get("C" + className);
+        if (index != null) return index;
+
+        int utf8 = utf8(className);
+        pool.u1(7);
+        pool.u2(utf8);
+        return add("C" + className, 1);
+    }
+
+    // An int (tag 3), or a long (tag 5) or double (tag 6), which take two
+    // entries.
+    private int constant(int tag, String key, long bits) {
+        Integer index = entries.get(tag + key);
+        if (index != null) return index;
+
+        pool.u1(tag);
+        if (tag == 3) {
+            pool.u4((int)bits);
+            return add(tag + key, 1);
+        }
+
+        pool.u8(bits);
+        return add(tag + key, 2);
+    }
+
+    // A field (tag 9) or method (tag 10) reference.
+    private int member(int tag, String owner, String name,
+                       String descriptor) {
+        String key = tag + owner + "." + name + descriptor;
+        Integer index = entries.get(key);
+        if (index != null) return index;
+
+        int ownerClass = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        pool.u1(12);
+        pool.u2(nameIndex);
+        pool.u2(descriptorIndex);
+        int nameAndType = add("N" + key, 1);
+
+        pool.u1(tag);
+        pool.u2(ownerClass);
+        pool.u2(nameAndType);
+        return add(key, 1);
+    }
+
+    private int add(String key, int size) {
+        int index = poolCount;
+        if (index + size > 65535) {
+            throw new IllegalStateException("Too many constants.");
+        }
+        entries.put(key, index);
+        poolCount += size;
+        return index;
+    }
+
+    private static int words(char type) {
+        if (type == 'V') return 0;
+        return (type == 'J' || type == 'D') ? 2 : 1;
+    }
+
+    private static int returnWords(String descriptor) {
+        return words(descriptor.charAt(descriptor.indexOf(')') + 1));
+    }
+
+    private static int argumentWords(String descriptor) {
+        int words = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char type = descriptor.charAt(i);
+            words += words(type);
+            while (descriptor.charAt(i) == '[') i++;
+            if (descriptor.charAt(i) == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            i++;
+        }
+        return words;
+    }
+}
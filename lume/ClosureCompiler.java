@@ -0,0 +1,894 @@
+package lumeProject.lume;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles resolved statements, once, into trees of Java lambdas that run
+// them. Which operator a node applies, whether a variable lives in the
+// frame, a capture, a box or a global cell, and what kind of callee a
+// call has are settled while compiling, so running a node does only the
+// work of its own case. Functions this backend creates carry their
+// compiled body; globals, natives, classes, instances and inline caches
+// are shared with the Interpreter.
+class ClosureCompiler implements Backend,
+                                 Expr.Visitor<ClosureCompiler.Code>,
+                                 Stmt.Visitor<ClosureCompiler.Action> {
+    // An expression, or a function body yielding its return value.
+    interface Code {
+        Object run(Object[] frame, Object[] captures);
+    }
+
+    // A statement, completing the way the Interpreter's statements do.
+    interface Action {
+        Completion run(Object[] frame, Object[] captures);
+    }
+
+    private interface Store {
+        void run(Object[] frame, Object[] captures, Object value);
+    }
+
+    // What a compound assignment or ++/-- stores, given the old value.
+    private interface Combine {
+        Object run(Object old, Object[] frame, Object[] captures);
+    }
+
+    private static final Object[] NO_CAPTURES = new Object[0];
+
+    private final Interpreter interpreter;
+    private final Globals globals;
+    private Object returnValue = null;
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    @Override
+    public void interpret(List<Stmt> statements) {
+        Action script = block(statements);
+        try {
+            script.run(new Object[interpreter.topLevelFrameSize],
+                NO_CAPTURES);
+        } catch (RuntimeError error) {
+            interpreter.out.flush();
+            Lume.runtimeError(error);
+        } finally {
+            interpreter.out.flush();
+        }
+    }
+
+    private Code compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Action compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Action block(List<Stmt> statements) {
+        Action[] actions = new Action[statements.size()];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = compile(statements.get(i));
+        }
+
+        if (actions.length == 1) return actions[0];
+        return (frame, captures) -> {
+            for (Action action : actions) {
+                Completion completion = action.run(frame, captures);
+                if (completion != null) return completion;
+            }
+
+            return null;
+        };
+    }
+
+    // A function body as one Code that yields the value it returns.
+    private Code function(Stmt.Function function) {
+        Action body = block(function.body);
+        return (frame, captures) -> {
+            if (body.run(frame, captures) != Completion.RETURN) return null;
+
+            Object value = returnValue;
+            returnValue = null;
+            return value;
+        };
+    }
+
+    private static Object[] capture(Stmt.Function function, Object[] frame,
+                                    Object[] captures) {
+        int count = function.captureDepths.length;
+        if (count == 0) return NO_CAPTURES;
+
+        Object[] values = new Object[count];
+        for (int i = 0; i < count; i++) {
+            int slot = function.captureSlots[i];
+            values[i] = (function.captureDepths[i] == Resolver.CAPTURED)
+                ? captures[slot] : frame[slot];
+        }
+
+        return values;
+    }
+
+    private Store declare(int slot, String name) {
+        if (slot == Resolver.GLOBAL) {
+            return (frame, captures, value) -> globals.define(name, value);
+        }
+
+        return (frame, captures, value) -> frame[slot] = value;
+    }
+
+    private Code read(Token name, int depth, int slot, boolean boxed,
+                      Globals.Cell global) {
+        if (depth == Resolver.GLOBAL) {
+            return (frame, captures) -> {
+                Object value = global.value;
+                if (value == Globals.UNDEFINED) {
+                    return globals.get(global, name);
+                }
+                return value;
+            };
+        }
+
+        if (depth == Resolver.CAPTURED) {
+            if (boxed) return (frame, captures) -> ((Box)captures[slot]).value;
+            return (frame, captures) -> captures[slot];
+        }
+
+        if (boxed) return (frame, captures) -> ((Box)frame[slot]).value;
+        return (frame, captures) -> frame[slot];
+    }
+
+    private Store write(Token name, int depth, int slot, boolean boxed,
+                        Globals.Cell global) {
+        if (depth == Resolver.GLOBAL) {
+            return (frame, captures, value) ->
+                globals.assign(global, name, value);
+        }
+
+        if (boxed && depth == Resolver.CAPTURED) {
+            return (frame, captures, value) ->
+                ((Box)captures[slot]).value = value;
+        }
+
+        if (boxed) {
+            return (frame, captures, value) ->
+                ((Box)frame[slot]).value = value;
+        }
+
+        return (frame, captures, value) -> frame[slot] = value;
+    }
+
+    @Override
+    public Action visitBlockStmt(Stmt.Block stmt) {
+        return block(stmt.statements);
+    }
+
+    @Override
+    public Action visitExpressionStmt(Stmt.Expression stmt) {
+        Code expression = compile(stmt.expression);
+        return (frame, captures) -> {
+            expression.run(frame, captures);
+            return null;
+        };
+    }
+
+    @Override
+    public Action visitPrintStmt(Stmt.Print stmt) {
+        Code expression = compile(stmt.expression);
+        boolean newline = stmt.printType.type != TokenType.PRINT;
+        return (frame, captures) -> {
+            interpreter.print(expression.run(frame, captures), newline);
+            return null;
+        };
+    }
+
+    @Override
+    public Action visitVarStmt(Stmt.Var stmt) {
+        Code initializer = (stmt.initializer != null)
+            ? compile(stmt.initializer) : (frame, captures) -> null;
+        int slot = stmt.slot;
+
+        if (slot == Resolver.GLOBAL) {
+            String name = stmt.name.lexeme;
+            return (frame, captures) -> {
+                globals.define(name, initializer.run(frame, captures));
+                return null;
+            };
+        }
+
+        if (stmt.boxed) {
+            return (frame, captures) -> {
+                frame[slot] = new Box(initializer.run(frame, captures));
+                return null;
+            };
+        }
+
+        return (frame, captures) -> {
+            frame[slot] = initializer.run(frame, captures);
+            return null;
+        };
+    }
+
+    @Override
+    public Action visitFunctionStmt(Stmt.Function stmt) {
+        Code body = function(stmt);
+        int slot = stmt.slot;
+
+        if (stmt.boxed) {
+            // A local function that calls itself captures its own box.
+            return (frame, captures) -> {
+                Box box = new Box(null);
+                frame[slot] = box;
+                box.value = new LumeFunction(stmt,
+                    capture(stmt, frame, captures), false, body);
+                return null;
+            };
+        }
+
+        Store declare = declare(slot, stmt.name.lexeme);
+        return (frame, captures) -> {
+            declare.run(frame, captures, new LumeFunction(stmt,
+                capture(stmt, frame, captures), false, body));
+            return null;
+        };
+    }
+
+    @Override
+    public Action visitClassStmt(Stmt.Class stmt) {
+        Code superclassCode = (stmt.superclass != null)
+            ? compile(stmt.superclass) : null;
+        Code[] bodies = new Code[stmt.methods.size()];
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = function(stmt.methods.get(i));
+        }
+        Store declare = declare(stmt.slot, stmt.name.lexeme);
+
+        return (frame, captures) -> {
+            LumeClass superclass = null;
+            if (superclassCode != null) {
+                Object value = superclassCode.run(frame, captures);
+                if (!(value instanceof LumeClass)) {
+                    throw new RuntimeError(stmt.superclass.name,
+                        "Superclass must be a class.");
+                }
+                superclass = (LumeClass)value;
+            }
+
+            Box box = null;
+            if (stmt.boxed) {
+                box = new Box(null);
+                frame[stmt.slot] = box;
+            }
+
+            Map<String, LumeFunction> methods = new HashMap<>();
+            if (superclass != null) {
+                frame[stmt.superSlot] =
+                    superclass.findMethods(stmt.superMethods);
+                methods.putAll(superclass.methods);
+            }
+
+            for (int i = 0; i < bodies.length; i++) {
+                Stmt.Function method = stmt.methods.get(i);
+                String name = method.name.lexeme;
+                methods.put(name, new LumeFunction(method,
+                    capture(method, frame, captures), name.equals("init"),
+                    bodies[i]));
+            }
+
+            LumeClass klass = new LumeClass(stmt.name.lexeme, superclass,
+                methods, stmt.fieldNames);
+            if (box != null) {
+                box.value = klass;
+            } else {
+                declare.run(frame, captures, klass);
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public Action visitIfStmt(Stmt.If stmt) {
+        Code condition = compile(stmt.condition);
+        Action thenBranch = compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            return (frame, captures) -> {
+                if (Interpreter.isTruthy(condition.run(frame, captures))) {
+                    return thenBranch.run(frame, captures);
+                }
+                return null;
+            };
+        }
+
+        Action elseBranch = compile(stmt.elseBranch);
+        return (frame, captures) -> {
+            if (Interpreter.isTruthy(condition.run(frame, captures))) {
+                return thenBranch.run(frame, captures);
+            }
+            return elseBranch.run(frame, captures);
+        };
+    }
+
+    @Override
+    public Action visitWhileStmt(Stmt.While stmt) {
+        Code condition = compile(stmt.condition);
+        Action body = compile(stmt.body);
+        Jit.Loop loop = stmt.loop;
+        return (frame, captures) -> {
+            while (Interpreter.isTruthy(condition.run(frame, captures))) {
+                Completion completion = body.run(frame, captures);
+                if (completion == Completion.BREAK) break;
+                if (completion == Completion.RETURN) return completion;
+
+                completion = backEdge(loop, frame);
+                if (completion == Completion.BREAK) break;
+                if (completion == Completion.RETURN) return completion;
+            }
+            return null;
+        };
+    }
+
+    // As Interpreter.backEdge.
+    private Completion backEdge(Jit.Loop loop, Object[] frame) {
+        Object value = Jit.backEdge(loop, frame);
+        if (value == Jit.FALLBACK) return null;
+        if (value == Jit.COMPLETED) return Completion.BREAK;
+        returnValue = value;
+        return Completion.RETURN;
+    }
+
+    @Override
+    public Action visitForStmt(Stmt.For stmt) {
+        Action initializer = (stmt.initializer != null)
+            ? compile(stmt.initializer) : (frame, captures) -> null;
+        Code condition = (stmt.condition != null)
+            ? compile(stmt.condition) : (frame, captures) -> true;
+        Code increment = (stmt.increment != null)
+            ? compile(stmt.increment) : (frame, captures) -> null;
+        Action body = compile(stmt.body);
+        Jit.Loop loop = stmt.loop;
+
+        return (frame, captures) -> {
+            initializer.run(frame, captures);
+            while (Interpreter.isTruthy(condition.run(frame, captures))) {
+                Completion completion = body.run(frame, captures);
+                if (completion == Completion.BREAK) break;
+                if (completion == Completion.RETURN) return completion;
+
+                increment.run(frame, captures);
+
+                completion = backEdge(loop, frame);
+                if (completion == Completion.BREAK) break;
+                if (completion == Completion.RETURN) return completion;
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public Action visitBreakStmt(Stmt.Break stmt) {
+        return (frame, captures) -> Completion.BREAK;
+    }
+
+    @Override
+    public Action visitReturnStmt(Stmt.Return stmt) {
+        Code value = (stmt.value != null)
+            ? compile(stmt.value) : (frame, captures) -> null;
+        return (frame, captures) -> {
+            returnValue = value.run(frame, captures);
+            return Completion.RETURN;
+        };
+    }
+
+    @Override
+    public Code visitAssignExpr(Expr.Assign expr) {
+        Code value = compile(expr.value);
+        int slot = expr.slot;
+        if (expr.depth != Resolver.GLOBAL && !expr.boxed) {
+            return (frame, captures) ->
+                frame[slot] = value.run(frame, captures);
+        }
+
+        Store store = write(expr.name, expr.depth, slot, expr.boxed,
+            expr.global);
+        return (frame, captures) -> {
+            Object result = value.run(frame, captures);
+            store.run(frame, captures, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Code visitBinaryExpr(Expr.Binary expr) {
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case PLUS:
+                if (expr.numericLeft && expr.numericRight) {
+                    return (frame, captures) -> {
+                        Object a = left.run(frame, captures);
+                        Object b = right.run(frame, captures);
+                        if (a instanceof Long && b instanceof Long) {
+                            long x = (long)a;
+                            long y = (long)b;
+                            if (Numbers.addIsExact(x, y)) return x + y;
+                        }
+                        return arithmetic(operator, a, b);
+                    };
+                }
+
+                return (frame, captures) -> {
+                    Object a = left.run(frame, captures);
+                    Object b = right.run(frame, captures);
+                    if (a instanceof Long && b instanceof Long) {
+                        long x = (long)a;
+                        long y = (long)b;
+                        if (Numbers.addIsExact(x, y)) return x + y;
+                    }
+                    if (a instanceof Double && b instanceof Double) {
+                        return (double)a + (double)b;
+                    }
+                    if (Rope.isString(a) && Rope.isString(b)) {
+                        return Rope.concat(a, b);
+                    }
+                    return Interpreter.add(operator, a, b);
+                };
+            case MINUS:
+                return (frame, captures) -> {
+                    Object a = left.run(frame, captures);
+                    Object b = right.run(frame, captures);
+                    if (a instanceof Long && b instanceof Long) {
+                        long x = (long)a;
+                        long y = (long)b;
+                        if (Numbers.subtractIsExact(x, y)) return x - y;
+                    }
+                    return arithmetic(operator, a, b);
+                };
+            case STAR:
+                return (frame, captures) -> {
+                    Object a = left.run(frame, captures);
+                    Object b = right.run(frame, captures);
+                    if (a instanceof Long && b instanceof Long) {
+                        long x = (long)a;
+                        long y = (long)b;
+                        if (Numbers.multiplyIsExact(x, y)) return x * y;
+                    }
+                    return arithmetic(operator, a, b);
+                };
+            case SLASH:
+                return (frame, captures) -> {
+                    Object a = left.run(frame, captures);
+                    Object b = right.run(frame, captures);
+                    if (a instanceof Long && b instanceof Long) {
+                        long x = (long)a;
+                        long y = (long)b;
+                        if (Numbers.divideIsExact(x, y)) return x / y;
+                    }
+                    return arithmetic(operator, a, b);
+                };
+            case PERCENT:
+                return (frame, captures) -> {
+                    Object a = left.run(frame, captures);
+                    Object b = right.run(frame, captures);
+                    if (a instanceof Long && b instanceof Long &&
+                        (long)b != 0) {
+                        return (long)a % (long)b;
+                    }
+                    return arithmetic(operator, a, b);
+                };
+            case GREATER:
+                return (frame, captures) -> {
+                    Object a = left.run(frame, captures);
+                    Object b = right.run(frame, captures);
+                    if (a instanceof Long && b instanceof Long) {
+                        return (long)a > (long)b;
+                    }
+                    return compare(operator, a, b);
+                };
+            case GREATER_EQUAL:
+                return (frame, captures) -> {
+                    Object a = left.run(frame, captures);
+                    Object b = right.run(frame, captures);
+                    if (a instanceof Long && b instanceof Long) {
+                        return (long)a >= (long)b;
+                    }
+                    return compare(operator, a, b);
+                };
+            case LESS:
+                return (frame, captures) -> {
+                    Object a = left.run(frame, captures);
+                    Object b = right.run(frame, captures);
+                    if (a instanceof Long && b instanceof Long) {
+                        return (long)a < (long)b;
+                    }
+                    return compare(operator, a, b);
+                };
+            case LESS_EQUAL:
+                return (frame, captures) -> {
+                    Object a = left.run(frame, captures);
+                    Object b = right.run(frame, captures);
+                    if (a instanceof Long && b instanceof Long) {
+                        return (long)a <= (long)b;
+                    }
+                    return compare(operator, a, b);
+                };
+            case EQUAL_EQUAL:
+                return (frame, captures) -> Interpreter.isEqual(
+                    left.run(frame, captures), right.run(frame, captures));
+            case BANG_EQUAL:
+                return (frame, captures) -> !Interpreter.isEqual(
+                    left.run(frame, captures), right.run(frame, captures));
+            default:
+                // The bitwise operators.
+                return (frame, captures) -> {
+                    Object a = left.run(frame, captures);
+                    return Numbers.binary(operator, a,
+                        right.run(frame, captures));
+                };
+        }
+    }
+
+    private static Object arithmetic(Token operator, Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) {
+            double x = (double)a;
+            double y = (double)b;
+            switch (operator.type) {
+                case PLUS: return x + y;
+                case MINUS: return x - y;
+                case STAR: return x * y;
+                case SLASH: return x / y;
+                default: break;
+            }
+        }
+
+        return Numbers.binary(operator, a, b);
+    }
+
+    private static Object compare(Token operator, Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) {
+            return Numbers.compare(operator.type, (double)a, (double)b);
+        }
+
+        return Numbers.binary(operator, a, b);
+    }
+
+    @Override
+    public Code visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Code visitCallExpr(Expr.Call expr) {
+        Code[] arguments = new Code[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+
+        // obj.method(...) passes obj straight into the method's frame
+        // instead of creating a bound method just for this call.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            Code object = compile(get.object);
+            InlineCache cache = expr.cache;
+            Token name = get.name;
+            return (frame, captures) -> {
+                Object value = object.run(frame, captures);
+                if (!(value instanceof LumeInstance)) {
+                    throw new RuntimeError(name,
+                        "Only instances have properties.");
+                }
+
+                LumeInstance instance = (LumeInstance)value;
+                LumeFunction method = cache.method(instance, name.lexeme);
+                if (method != null && method.arity() == arguments.length) {
+                    return invoke(method, method.newFrame(instance),
+                        arguments, frame, captures);
+                }
+
+                return call(expr, instance.get(name), arguments, frame,
+                    captures);
+            };
+        }
+
+        // super.method(...) runs with the current 'this' unbound.
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super target = (Expr.Super)expr.callee;
+            Code table = read(null, target.depth, target.slot, false, null);
+            Code self = read(null, target.thisDepth, target.thisSlot, false,
+                null);
+            return (frame, captures) -> {
+                LumeFunction method =
+                    superMethod(target, table.run(frame, captures));
+                LumeInstance object = (LumeInstance)self.run(frame, captures);
+                if (method.arity() == arguments.length) {
+                    return invoke(method, method.newFrame(object), arguments,
+                        frame, captures);
+                }
+
+                return call(expr, method.bind(object), arguments, frame,
+                    captures);
+            };
+        }
+
+        Code callee = compile(expr.callee);
+        return (frame, captures) -> call(expr, callee.run(frame, captures),
+            arguments, frame, captures);
+    }
+
+    private Object call(Expr.Call expr, Object callee, Code[] arguments,
+                        Object[] frame, Object[] captures) {
+        int count = arguments.length;
+
+        // A Lume function or class with the right arity can't fail before
+        // the body runs, so the arguments go straight into its frame.
+        if (callee instanceof LumeFunction) {
+            LumeFunction function = (LumeFunction)callee;
+            if (function.arity() == count) {
+                return invoke(function, function.newFrame(), arguments,
+                    frame, captures);
+            }
+        } else if (callee instanceof LumeClass) {
+            LumeClass klass = (LumeClass)callee;
+            if (klass.arity() == count) {
+                LumeInstance instance = new LumeInstance(klass);
+                LumeFunction initializer = klass.initializer;
+                if (initializer != null) {
+                    invoke(initializer, initializer.newFrame(instance),
+                        arguments, frame, captures);
+                }
+
+                return instance;
+            }
+        }
+
+        Object[] values = new Object[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = arguments[i].run(frame, captures);
+        }
+
+        if (!(callee instanceof LumeCallable)) {
+            throw new RuntimeError(expr.paren,
+                "Can only call functions and classes.");
+        }
+
+        LumeCallable function = (LumeCallable)callee;
+        if (count != function.arity()) {
+            throw new RuntimeError(expr.paren, "Expected " +
+                function.arity() + " arguments but got " + count + ".");
+        }
+
+        switch (count) {
+            case 0: return function.call0(interpreter);
+            case 1: return function.call1(interpreter, values[0]);
+            case 2: return function.call2(interpreter, values[0], values[1]);
+            case 3:
+                return function.call3(interpreter, values[0], values[1],
+                    values[2]);
+            default: return function.call(interpreter, values);
+        }
+    }
+
+    private Object invoke(LumeFunction function, Object[] calleeFrame,
+                          Code[] arguments, Object[] frame,
+                          Object[] captures) {
+        int slot = function.firstParameterSlot();
+        for (int i = 0; i < arguments.length; i++) {
+            calleeFrame[slot + i] = arguments[i].run(frame, captures);
+        }
+
+        return function.invoke(interpreter, calleeFrame);
+    }
+
+    @Override
+    public Code visitSetExpr(Expr.Set expr) {
+        Code object = compile(expr.object);
+        Code value = compile(expr.value);
+        InlineCache cache = expr.cache;
+        Token name = expr.name;
+        return (frame, captures) -> {
+            Object target = object.run(frame, captures);
+            if (!(target instanceof LumeInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            Object result = value.run(frame, captures);
+            cache.set((LumeInstance)target, name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Code visitSuperExpr(Expr.Super expr) {
+        Code table = read(null, expr.depth, expr.slot, false, null);
+        Code self = read(null, expr.thisDepth, expr.thisSlot, false, null);
+        return (frame, captures) -> {
+            LumeInstance object = (LumeInstance)self.run(frame, captures);
+            return superMethod(expr, table.run(frame, captures)).bind(object);
+        };
+    }
+
+    private static LumeFunction superMethod(Expr.Super expr, Object table) {
+        LumeFunction method = ((LumeFunction[])table)[expr.index];
+        if (method == null) {
+            throw new RuntimeError(expr.method,
+                "Undefined property '" + expr.method.lexeme + "'.");
+        }
+
+        return method;
+    }
+
+    @Override
+    public Code visitGetExpr(Expr.Get expr) {
+        Code object = compile(expr.object);
+        InlineCache cache = expr.cache;
+        Token name = expr.name;
+        return (frame, captures) -> {
+            Object value = object.run(frame, captures);
+            if (value instanceof LumeInstance) {
+                return cache.get((LumeInstance)value, name);
+            }
+
+            throw new RuntimeError(name, "Only instances have properties.");
+        };
+    }
+
+    @Override
+    public Code visitThisExpr(Expr.This expr) {
+        return read(null, expr.depth, expr.slot, false, null);
+    }
+
+    @Override
+    public Code visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return (frame, captures) -> value;
+    }
+
+    @Override
+    public Code visitLogicalExpr(Expr.Logical expr) {
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return (frame, captures) -> {
+                Object value = left.run(frame, captures);
+                if (Interpreter.isTruthy(value)) return value;
+                return right.run(frame, captures);
+            };
+        }
+
+        return (frame, captures) -> {
+            Object value = left.run(frame, captures);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.run(frame, captures);
+        };
+    }
+
+    @Override
+    public Code visitUnaryExpr(Expr.Unary expr) {
+        Token operator = expr.operator;
+        switch (operator.type) {
+            case MINUS: {
+                Code right = compile(expr.right);
+                return (frame, captures) -> {
+                    Object value = right.run(frame, captures);
+                    Interpreter.checkNumberOperand(operator, value);
+                    return Numbers.negate(value);
+                };
+            }
+            case BANG: {
+                Code right = compile(expr.right);
+                return (frame, captures) ->
+                    !Interpreter.isTruthy(right.run(frame, captures));
+            }
+            default:
+                return step(expr.right, operator, false);
+        }
+    }
+
+    @Override
+    public Code visitPostfixExpr(Expr.Postfix expr) {
+        return step(expr.left, expr.operator, true);
+    }
+
+    // ++ or -- on a variable; the postfix form yields the old value.
+    private Code step(Expr operand, Token operator, boolean postfix) {
+        Code read = compile(operand);
+        if (!(operand instanceof Expr.Variable)) {
+            // The operand still runs before the error, as in the
+            // Interpreter.
+            String message = "Operand of '" + operator.lexeme +
+                "' must be a variable or field.";
+            return (frame, captures) -> {
+                read.run(frame, captures);
+                throw new RuntimeError(operator, message);
+            };
+        }
+
+        Expr.Variable variable = (Expr.Variable)operand;
+        Store store = write(variable.name, variable.depth, variable.slot,
+            variable.boxed, variable.global);
+        long step = (operator.type == TokenType.PLUS_PLUS) ? 1 : -1;
+
+        if (postfix) {
+            return (frame, captures) -> {
+                Object old = read.run(frame, captures);
+                Interpreter.checkNumberOperand(operator, old);
+                store.run(frame, captures, Numbers.step(old, step));
+                return old;
+            };
+        }
+
+        return (frame, captures) -> {
+            Object old = read.run(frame, captures);
+            Interpreter.checkNumberOperand(operator, old);
+            Object updated = Numbers.step(old, step);
+            store.run(frame, captures, updated);
+            return updated;
+        };
+    }
+
+    // Compound assignment and ++/-- on a field: the object is evaluated
+    // once and the field's slot is read and written in place.
+    @Override
+    public Code visitUpdateExpr(Expr.Update expr) {
+        Code object = compile(expr.object);
+        Token operator = expr.operator;
+        Combine combine;
+        switch (operator.type) {
+            case PLUS_PLUS:
+            case MINUS_MINUS: {
+                long step = (operator.type == TokenType.PLUS_PLUS) ? 1 : -1;
+                combine = (old, frame, captures) -> {
+                    Interpreter.checkNumberOperand(operator, old);
+                    return Numbers.step(old, step);
+                };
+                break;
+            }
+            case PLUS: {
+                Code value = compile(expr.value);
+                combine = (old, frame, captures) -> Interpreter.add(operator,
+                    old, value.run(frame, captures));
+                break;
+            }
+            default: {
+                Code value = compile(expr.value);
+                combine = (old, frame, captures) -> Numbers.binary(operator,
+                    old, value.run(frame, captures));
+                break;
+            }
+        }
+
+        InlineCache cache = expr.cache;
+        Token name = expr.name;
+        boolean postfix = expr.postfix;
+        return (frame, captures) -> {
+            Object target = object.run(frame, captures);
+            if (!(target instanceof LumeInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            LumeInstance instance = (LumeInstance)target;
+            int slot = cache.slot(instance, name);
+            Object old = (slot == -1) ?
+                instance.get(name) : instance.values[slot];
+            Object updated = combine.run(old, frame, captures);
+
+            if (slot == -1) {
+                cache.set(instance, name, updated);
+            } else {
+                instance.values[slot] = updated;
+            }
+
+            return postfix ? old : updated;
+        };
+    }
+
+    @Override
+    public Code visitVariableExpr(Expr.Variable expr) {
+        return read(expr.name, expr.depth, expr.slot, expr.boxed,
+            expr.global);
+    }
+}
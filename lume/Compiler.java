@@ -0,0 +1,526 @@
+package lumeProject.lume;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiles resolved statements to bytecode for the VM. Every variable
+// access uses the depth and slot the Resolver worked out, and property
+// sites keep their inline caches, so the VM runs on the same runtime
+// structures as the Interpreter. Each function body gets its own Chunk,
+// which the CLOSURE instruction that creates the function refers to.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Chunk chunk;
+    private int depth = 0;
+    // The pending 'break' jumps of each enclosing loop.
+    private final List<List<Integer>> breaks = new ArrayList<>();
+
+    private Compiler(Chunk chunk) {
+        this.chunk = chunk;
+    }
+
+    static Chunk compile(List<Stmt> statements) {
+        Compiler compiler = new Compiler(new Chunk(null, false));
+        compiler.compileStatements(statements);
+        compiler.emit(OpCode.NIL, 1);
+        compiler.emit(OpCode.RETURN, -1);
+        return compiler.finish();
+    }
+
+    private static Chunk compile(Stmt.Function function,
+                                 boolean isInitializer) {
+        Compiler compiler = new Compiler(new Chunk(function, isInitializer));
+        compiler.compileStatements(function.body);
+        compiler.emit(OpCode.NIL, 1);
+        compiler.emit(OpCode.RETURN, -1);
+        return compiler.finish();
+    }
+
+    private Chunk finish() {
+        chunk.finish();
+        return chunk;
+    }
+
+    private void compileStatements(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    // Emits an instruction that moves the stack by 'effect' values.
+    private void emit(byte op, int effect) {
+        emit(op, effect, null);
+    }
+
+    private void emit(byte op, int effect, Token token) {
+        chunk.write(op, token);
+        depth += effect;
+        chunk.maxStack = Math.max(chunk.maxStack, depth);
+    }
+
+    private void emit(byte op, int effect, int operand) {
+        emit(op, effect, operand, null);
+    }
+
+    private void emit(byte op, int effect, int operand, Token token) {
+        emit(op, effect, token);
+        chunk.writeShort(operand);
+    }
+
+    private int constant(Object value) {
+        return chunk.addConstant(value);
+    }
+
+    private int emitJump(byte op, int effect) {
+        emit(op, effect);
+        chunk.writeInt(0);
+        return chunk.count - 4;
+    }
+
+    // Offsets count from the end of the jump instruction.
+    private void patchJump(int at) {
+        chunk.patchInt(at, chunk.count - (at + 4));
+    }
+
+    private void emitLoop(int start) {
+        emit(OpCode.JUMP, 0);
+        chunk.writeInt(start - (chunk.count + 4));
+    }
+
+    private void beginLoop() {
+        breaks.add(new ArrayList<>());
+    }
+
+    private void endLoop() {
+        for (int at : breaks.remove(breaks.size() - 1)) {
+            patchJump(at);
+        }
+    }
+
+    private void getVariable(Token name, int depth, int slot,
+                             boolean boxed, Globals.Cell global) {
+        if (depth == Resolver.GLOBAL) {
+            emit(OpCode.GET_GLOBAL, 1, constant(global), name);
+        } else if (depth == Resolver.CAPTURED) {
+            emit(boxed ? OpCode.GET_CAPTURE_BOXED : OpCode.GET_CAPTURE, 1,
+                slot);
+        } else {
+            emit(boxed ? OpCode.GET_LOCAL_BOXED : OpCode.GET_LOCAL, 1, slot);
+        }
+    }
+
+    // Leaves the value on the stack. Only boxed variables can be assigned
+    // through a capture.
+    private void setVariable(Token name, int depth, int slot,
+                             boolean boxed, Globals.Cell global) {
+        if (depth == Resolver.GLOBAL) {
+            emit(OpCode.SET_GLOBAL, 0, constant(global), name);
+        } else if (boxed) {
+            emit(depth == Resolver.CAPTURED ? OpCode.SET_CAPTURE_BOXED
+                : OpCode.SET_LOCAL_BOXED, 0, slot);
+        } else {
+            emit(OpCode.SET_LOCAL, 0, slot);
+        }
+    }
+
+    private void declare(int slot, boolean boxed, String name) {
+        if (slot == Resolver.GLOBAL) {
+            emit(OpCode.DEFINE_GLOBAL, -1, constant(name));
+        } else {
+            emit(boxed ? OpCode.STORE_LOCAL_BOXED : OpCode.STORE_LOCAL, -1,
+                slot);
+        }
+    }
+
+    // Reads 'this' or the super table of a method.
+    private void getSynthetic(int depth, int slot) {
+        emit(depth == Resolver.CAPTURED ? OpCode.GET_CAPTURE
+            : OpCode.GET_LOCAL, 1, slot);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        compileStatements(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(OpCode.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(stmt.printType.type == TokenType.PRINT ? OpCode.PRINT
+            : OpCode.PRINTLN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(OpCode.NIL, 1);
+        }
+
+        declare(stmt.slot, stmt.boxed, stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        int function = constant(compile(stmt, false));
+        if (stmt.boxed) {
+            // A local function that calls itself captures its own box.
+            emit(OpCode.NEW_BOX, 0, stmt.slot);
+            emit(OpCode.CLOSURE, 1, function);
+            emit(OpCode.SET_LOCAL_BOXED, 0, stmt.slot);
+            emit(OpCode.POP, -1);
+            return null;
+        }
+
+        emit(OpCode.CLOSURE, 1, function);
+        declare(stmt.slot, false, stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        int klass = constant(stmt);
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            emit(OpCode.CHECK_SUPERCLASS, 0, klass, stmt.superclass.name);
+        }
+
+        if (stmt.boxed) emit(OpCode.NEW_BOX, 0, stmt.slot);
+        if (stmt.superclass != null) emit(OpCode.SUPER_TABLE, 0, klass);
+
+        for (Stmt.Function method : stmt.methods) {
+            boolean isInitializer = method.name.lexeme.equals("init");
+            emit(OpCode.CLOSURE, 1, constant(compile(method, isInitializer)));
+        }
+
+        int popped = stmt.methods.size() + (stmt.superclass != null ? 1 : 0);
+        emit(OpCode.CLASS, 1 - popped, klass);
+
+        if (stmt.boxed) {
+            emit(OpCode.SET_LOCAL_BOXED, 0, stmt.slot);
+            emit(OpCode.POP, -1);
+        } else {
+            declare(stmt.slot, false, stmt.name.lexeme);
+        }
+        return null;
+    }
+
+    // Compiles the condition of an if or a loop and a jump taken when it
+    // is false, returning the jump for patching.
+    private int compileCondition(Expr condition) {
+        if (condition instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)condition;
+            byte op = -1;
+            switch (binary.operator.type) {
+                case GREATER: op = OpCode.JUMP_UNLESS_GREATER; break;
+                case GREATER_EQUAL:
+                    op = OpCode.JUMP_UNLESS_GREATER_EQUAL;
+                    break;
+                case LESS: op = OpCode.JUMP_UNLESS_LESS; break;
+                case LESS_EQUAL: op = OpCode.JUMP_UNLESS_LESS_EQUAL; break;
+                default: break;
+            }
+
+            if (op != -1) {
+                compile(binary.left);
+                compile(binary.right);
+                emit(op, -2, binary.operator);
+                chunk.writeInt(0);
+                return chunk.count - 4;
+            }
+        }
+
+        compile(condition);
+        return emitJump(OpCode.JUMP_IF_FALSE, -1);
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int elseJump = compileCondition(stmt.condition);
+        stmt.thenBranch.accept(this);
+
+        if (stmt.elseBranch == null) {
+            patchJump(elseJump);
+            return null;
+        }
+
+        int endJump = emitJump(OpCode.JUMP, 0);
+        patchJump(elseJump);
+        stmt.elseBranch.accept(this);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int start = chunk.count;
+        int exit = compileCondition(stmt.condition);
+
+        beginLoop();
+        stmt.body.accept(this);
+        emitLoop(start);
+        patchJump(exit);
+        endLoop();
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (stmt.initializer != null) stmt.initializer.accept(this);
+
+        int start = chunk.count;
+        int exit = -1;
+        if (stmt.condition != null) exit = compileCondition(stmt.condition);
+
+        beginLoop();
+        stmt.body.accept(this);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emit(OpCode.POP, -1);
+        }
+
+        emitLoop(start);
+        if (exit != -1) patchJump(exit);
+        endLoop();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        breaks.get(breaks.size() - 1).add(emitJump(OpCode.JUMP, 0));
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(OpCode.NIL, 1);
+        }
+
+        emit(OpCode.RETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        setVariable(expr.name, expr.depth, expr.slot, expr.boxed,
+            expr.global);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        byte op;
+        switch (expr.operator.type) {
+            case PLUS: op = OpCode.ADD; break;
+            case MINUS: op = OpCode.SUBTRACT; break;
+            case STAR: op = OpCode.MULTIPLY; break;
+            case SLASH: op = OpCode.DIVIDE; break;
+            case PERCENT: op = OpCode.MODULO; break;
+            case AMPERSAND: op = OpCode.BIT_AND; break;
+            case PIPE: op = OpCode.BIT_OR; break;
+            case LESS_LESS: op = OpCode.SHIFT_LEFT; break;
+            case GREATER_GREATER: op = OpCode.SHIFT_RIGHT; break;
+            case GREATER: op = OpCode.GREATER; break;
+            case GREATER_EQUAL: op = OpCode.GREATER_EQUAL; break;
+            case LESS: op = OpCode.LESS; break;
+            case LESS_EQUAL: op = OpCode.LESS_EQUAL; break;
+            case EQUAL_EQUAL: op = OpCode.EQUAL; break;
+            default: op = OpCode.NOT_EQUAL; break;
+        }
+
+        emit(op, -1, expr.operator);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        int count = expr.arguments.size();
+        if (expr.callee instanceof Expr.Get) {
+            // obj.method(...) puts obj in the method's frame directly.
+            Expr.Get get = (Expr.Get)expr.callee;
+            compile(get.object);
+            emit(OpCode.INVOKE_PREP, 1, constant(expr), get.name);
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super target = (Expr.Super)expr.callee;
+            getSynthetic(target.depth, target.slot);
+            getSynthetic(target.thisDepth, target.thisSlot);
+            emit(OpCode.SUPER_PREP, 0, constant(target), target.method);
+        } else {
+            compile(expr.callee);
+        }
+
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        boolean invoke = expr.callee instanceof Expr.Get ||
+            expr.callee instanceof Expr.Super;
+        emit(invoke ? OpCode.INVOKE : OpCode.CALL,
+            invoke ? -count - 1 : -count, expr.paren);
+        chunk.write(count, null);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        int set = constant(expr);
+        emit(OpCode.CHECK_INSTANCE, 0, set, expr.name);
+        compile(expr.value);
+        emit(OpCode.SET_PROPERTY, -1, set, expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        getSynthetic(expr.depth, expr.slot);
+        getSynthetic(expr.thisDepth, expr.thisSlot);
+        emit(OpCode.SUPER_GET, -1, constant(expr), expr.method);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        emit(OpCode.GET_PROPERTY, 0, constant(expr), expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        getSynthetic(expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL, 1);
+        } else if (expr.value.equals(true)) {
+            emit(OpCode.TRUE, 1);
+        } else if (expr.value.equals(false)) {
+            emit(OpCode.FALSE, 1);
+        } else {
+            emit(OpCode.CONSTANT, 1, constant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        int end = emitJump(expr.operator.type == TokenType.OR ? OpCode.OR
+            : OpCode.AND, -1);
+        compile(expr.right);
+        patchJump(end);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        switch (expr.operator.type) {
+            case MINUS:
+                compile(expr.right);
+                emit(OpCode.NEGATE, 0, expr.operator);
+                return null;
+            case BANG:
+                compile(expr.right);
+                emit(OpCode.NOT, 0);
+                return null;
+            default:
+                break;
+        }
+
+        if (!(expr.right instanceof Expr.Variable)) {
+            notAVariable(expr.right, expr.operator);
+            return null;
+        }
+
+        Expr.Variable variable = (Expr.Variable)expr.right;
+        getVariable(variable.name, variable.depth, variable.slot,
+            variable.boxed, variable.global);
+        emit(step(expr.operator), 0, expr.operator);
+        setVariable(variable.name, variable.depth, variable.slot,
+            variable.boxed, variable.global);
+        return null;
+    }
+
+    @Override
+    public Void visitPostfixExpr(Expr.Postfix expr) {
+        if (!(expr.left instanceof Expr.Variable)) {
+            notAVariable(expr.left, expr.operator);
+            return null;
+        }
+
+        // The old value stays under the updated one.
+        Expr.Variable variable = (Expr.Variable)expr.left;
+        getVariable(variable.name, variable.depth, variable.slot,
+            variable.boxed, variable.global);
+        emit(OpCode.DUP, 1);
+        emit(step(expr.operator), 0, expr.operator);
+        setVariable(variable.name, variable.depth, variable.slot,
+            variable.boxed, variable.global);
+        emit(OpCode.POP, -1);
+        return null;
+    }
+
+    private static byte step(Token operator) {
+        return operator.type == TokenType.PLUS_PLUS ? OpCode.INCREMENT
+            : OpCode.DECREMENT;
+    }
+
+    // The operand still runs before the error, as in the Interpreter.
+    private void notAVariable(Expr operand, Token operator) {
+        compile(operand);
+        emit(OpCode.THROW, 0, constant("Operand of '" + operator.lexeme +
+            "' must be a variable or field."), operator);
+    }
+
+    @Override
+    public Void visitUpdateExpr(Expr.Update expr) {
+        compile(expr.object);
+        int update = constant(expr);
+        emit(OpCode.UPDATE_READ, 1, update, expr.name);
+        if (expr.value != null) {
+            compile(expr.value);
+            emit(OpCode.UPDATE_WRITE, -2, update, expr.operator);
+        } else {
+            emit(OpCode.UPDATE_WRITE, -1, update, expr.operator);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        getVariable(expr.name, expr.depth, expr.slot, expr.boxed,
+            expr.global);
+        return null;
+    }
+}
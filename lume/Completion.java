@@ -0,0 +1,9 @@
+package lumeProject.lume;
+
+// Returned by a statement that stops the statements around it early;
+// null means the statement completed normally. The value of a RETURN
+// waits in Interpreter.returnValue until the function call picks it up.
+enum Completion {
+    BREAK,
+    RETURN
+}
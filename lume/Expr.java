@@ -16,6 +16,7 @@ abstract class Expr {
         R visitLogicalExpr(Logical expr);
         R visitUnaryExpr(Unary expr);
         R visitPostfixExpr(Postfix expr);
+        R visitUpdateExpr(Update expr);
         R visitVariableExpr(Variable expr);
     }
     static class Assign extends Expr {
@@ -31,6 +32,10 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+        int depth;
+        int slot;
+        boolean boxed;
+        Globals.Cell global;
     }    static class Binary extends Expr {
         Binary(Expr left, Token operator, Expr right) {
             this.left = left;
@@ -46,6 +51,9 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        boolean numericLeft;
+        boolean numericRight;
+        Specialization specialization;
     }    static class Grouping extends Expr {
         Grouping(Expr expression) {
             this.expression = expression;
@@ -72,6 +80,7 @@ abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+        InlineCache cache;
     }    static class Set extends Expr {
         Set(Expr object, Token name, Expr value) {
             this.object = object;
@@ -87,6 +96,7 @@ abstract class Expr {
         final Expr object;
         final Token name;
         final Expr value;
+        InlineCache cache;
     }    static class Super extends Expr {
         Super(Token keyword, Token method) {
             this.keyword = keyword;
@@ -100,6 +110,11 @@ abstract class Expr {
 
         final Token keyword;
         final Token method;
+        int depth;
+        int slot;
+        int thisDepth;
+        int thisSlot;
+        int index;
     }    static class Get extends Expr {
         Get(Expr object, Token name) {
             this.object = object;
@@ -113,6 +128,7 @@ abstract class Expr {
 
         final Expr object;
         final Token name;
+        InlineCache cache;
     }    static class This extends Expr {
         This(Token keyword) {
             this.keyword = keyword;
@@ -124,6 +140,8 @@ abstract class Expr {
         }
 
         final Token keyword;
+        int depth;
+        int slot;
     }    static class Literal extends Expr {
         Literal(Object value) {
             this.value = value;
@@ -163,6 +181,8 @@ abstract class Expr {
 
         final Token operator;
         final Expr right;
+        boolean numericRight;
+        Specialization specialization;
     }    static class Postfix extends Expr {
         Postfix(Expr left, Token operator) {
             this.left = left;
@@ -176,6 +196,26 @@ abstract class Expr {
 
         final Expr left;
         final Token operator;
+    }    static class Update extends Expr {
+        Update(Expr object, Token name, Token operator, Expr value, boolean postfix) {
+            this.object = object;
+            this.name = name;
+            this.operator = operator;
+            this.value = value;
+            this.postfix = postfix;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitUpdateExpr(this);
+        }
+
+        final Expr object;
+        final Token name;
+        final Token operator;
+        final Expr value;
+        final boolean postfix;
+        InlineCache cache;
     }    static class Variable extends Expr {
         Variable(Token name) {
             this.name = name;
@@ -187,6 +227,10 @@ abstract class Expr {
         }
 
         final Token name;
+        int depth;
+        int slot;
+        boolean boxed;
+        Globals.Cell global;
     }
     abstract <R> R accept(Visitor<R> visitor);
 }
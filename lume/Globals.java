@@ -0,0 +1,56 @@
+package lumeProject.lume;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class Globals {
+    static final Object UNDEFINED = new Object();
+
+    // One cell per global name, created the first time the name is
+    // defined or referenced and never replaced afterwards. Resolved sites
+    // hold on to their cell, so redefining a global in the REPL just
+    // stores a new value into the cell every site already sees.
+    static class Cell {
+        final String name;
+        Object value = UNDEFINED;
+
+        Cell(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Map<String, Cell> cells = new HashMap<>();
+
+    Cell cell(String name) {
+        Cell cell = cells.get(name);
+        if (cell == null) {
+            cell = new Cell(name);
+            cells.put(name, cell);
+        }
+
+        return cell;
+    }
+
+    void define(String name, Object value) {
+        cell(name).value = value;
+    }
+
+    Object get(Cell cell, Token name) {
+        Object value = cell.value;
+        if (value == UNDEFINED) {
+            throw new RuntimeError(name,
+                "Undefined variable '" + name.lexeme + "'.");
+        }
+
+        return value;
+    }
+
+    void assign(Cell cell, Token name, Object value) {
+        if (cell.value == UNDEFINED) {
+            throw new RuntimeError(name,
+                "Undefined variable '" + name.lexeme + "'.");
+        }
+
+        cell.value = value;
+    }
+}
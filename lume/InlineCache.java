@@ -0,0 +1,128 @@
+package lumeProject.lume;
+
+import java.util.Arrays;
+
+// Remembers, at one property site, what looking the name up found for the
+// last few shapes that reached it, so a repeat visit costs an identity
+// compare. A shape pins its class and its slots never move, so entries
+// can't go stale: a class redefined in the REPL brings fresh shapes that
+// simply miss. A site that sees too many shapes stops caching.
+class InlineCache {
+    private static final int POLYMORPHIC_LIMIT = 4;
+
+    private static class Entry {
+        final Shape shape;
+        final int slot;
+        final LumeFunction method;
+        // Where a set that adds the field moves the instance.
+        final Shape next;
+
+        Entry(Shape shape, int slot, LumeFunction method, Shape next) {
+            this.shape = shape;
+            this.slot = slot;
+            this.method = method;
+            this.next = next;
+        }
+    }
+
+    private final Entry[] entries = new Entry[POLYMORPHIC_LIMIT];
+    private int count = 0;
+    private boolean megamorphic = false;
+
+    Object get(LumeInstance instance, Token name) {
+        Entry entry = lookUp(instance, name.lexeme);
+        if (entry == null) return instance.get(name);
+        if (entry.method != null) return entry.method.bind(instance);
+        return instance.values[entry.slot];
+    }
+
+    // The method a call through this site invokes on the instance, or null
+    // when a field shadows it or there is no such property.
+    LumeFunction method(LumeInstance instance, String name) {
+        Entry entry = lookUp(instance, name);
+        if (entry == null) {
+            if (instance.shape.slotOf(name) != -1) return null;
+            return instance.klass.findMethod(name);
+        }
+
+        return entry.method;
+    }
+
+    // Where the instance keeps the field, or -1 when it has no such field.
+    int slot(LumeInstance instance, Token name) {
+        Entry entry = lookUp(instance, name.lexeme);
+        if (entry == null) return instance.shape.slotOf(name.lexeme);
+        if (entry.method != null) return -1;
+        return entry.slot;
+    }
+
+    void set(LumeInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        Entry entry = find(shape);
+        if (entry == null) {
+            if (megamorphic) {
+                instance.set(name, value);
+                return;
+            }
+
+            int slot = shape.slotOf(name.lexeme);
+            Shape next = null;
+            if (slot == -1) {
+                slot = shape.size();
+                next = shape.with(name.lexeme);
+            }
+
+            entry = add(new Entry(shape, slot, null, next));
+        }
+
+        if (entry.next != null) instance.extend(entry.next);
+        instance.values[entry.slot] = value;
+    }
+
+    // The shape of a site that has only seen one, and found a field
+    // there, for compiled code to guard on; null otherwise.
+    Shape fieldShape() {
+        if (count != 1 || entries[0].method != null) return null;
+        return entries[0].shape;
+    }
+
+    int fieldSlot() {
+        return entries[0].slot;
+    }
+
+    // Null when the site has gone megamorphic or the name is undefined.
+    private Entry lookUp(LumeInstance instance, String name) {
+        Shape shape = instance.shape;
+        Entry entry = find(shape);
+        if (entry != null || megamorphic) return entry;
+
+        int slot = shape.slotOf(name);
+        LumeFunction method = null;
+        if (slot == -1) {
+            method = instance.klass.findMethod(name);
+            if (method == null) return null;
+        }
+
+        return add(new Entry(shape, slot, method, null));
+    }
+
+    private Entry find(Shape shape) {
+        for (int i = 0; i < count; i++) {
+            if (entries[i].shape == shape) return entries[i];
+        }
+
+        return null;
+    }
+
+    private Entry add(Entry entry) {
+        if (count == POLYMORPHIC_LIMIT) {
+            megamorphic = true;
+            Arrays.fill(entries, null);
+            count = 0;
+        } else {
+            entries[count++] = entry;
+        }
+
+        return entry;
+    }
+}
@@ -1,16 +1,34 @@
 package lumeProject.lume;
 
 import static lumeProject.lume.TokenType.*;
-import java.util.ArrayList;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-class Interpreter implements Expr.Visitor<Object>,
-                            Stmt.Visitor<Void> {
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+class Interpreter implements Backend, Expr.Visitor<Object>,
+                            Stmt.Visitor<Completion> {
+    private static final Object[] NO_CAPTURES = new Object[0];
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+
+    final Globals globals = new Globals();
+    private Object[] frame = null;
+    private Object[] captures = null;
+    private Object returnValue = null;
+    // Numeric operands the resolver marked are evaluated without boxing,
+    // to a long holding either an integer or, when numberIsDouble is set,
+    // the bits of a double.
+    private boolean numberIsDouble;
+    int topLevelFrameSize = 0;
+    // Unlike System.out, this doesn't flush at every line. It is flushed
+    // when a run ends, before an error is reported and before reading
+    // input.
+    final PrintStream out = new PrintStream(
+        new BufferedOutputStream(
+            new FileOutputStream(FileDescriptor.out), 1 << 16), false);
 
     Interpreter() {
         globals.define("clock", new LumeCallable() {
@@ -18,11 +36,16 @@ class Interpreter implements Expr.Visitor<Object>,
             public int arity() { return 0; }
 
             @Override
-            public Object call(Interpreter interpreter,
-                                List<Object> arguments) {
+            public Object call0(Interpreter interpreter) {
             return (double)System.currentTimeMillis() / 1000.0;
             }
 
+            @Override
+            public Object call(Interpreter interpreter,
+                                Object[] arguments) {
+            return call0(interpreter);
+            }
+
             @Override
             public String toString() { return "<native fn>"; }
         });
@@ -32,14 +55,20 @@ class Interpreter implements Expr.Visitor<Object>,
             public int arity() { return 0; }
 
             @Override
-            public Object call(Interpreter interpreter,
-                                List<Object> arguments) {
+            public Object call0(Interpreter interpreter) {
+            interpreter.out.flush();
             java.util.Scanner scanner = new java.util.Scanner(System.in);
             String text = scanner.next();
             scanner.close();
             return text;
             }
 
+            @Override
+            public Object call(Interpreter interpreter,
+                                Object[] arguments) {
+            return call0(interpreter);
+            }
+
             @Override
             public String toString() { return "<native fn>"; }
         });
@@ -49,54 +78,56 @@ class Interpreter implements Expr.Visitor<Object>,
             public int arity() { return 0; }
 
             @Override
-            public Object call(Interpreter interpreter,
-                                List<Object> arguments) {
+            public Object call0(Interpreter interpreter) {
+            interpreter.out.flush();
             java.util.Scanner scanner = new java.util.Scanner(System.in);
             String text = scanner.nextLine();
             scanner.close();
             return text;
             }
 
+            @Override
+            public Object call(Interpreter interpreter,
+                                Object[] arguments) {
+            return call0(interpreter);
+            }
+
             @Override
             public String toString() { return "<native fn>"; }
         });
     }
 
-    void interpret(List<Stmt> statements) {
+    @Override
+    public void interpret(List<Stmt> statements) {
+        frame = new Object[topLevelFrameSize];
         try {
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } catch(RuntimeError error) {
+            out.flush();
             Lume.runtimeError(error);
+        } finally {
+            out.flush();
         }
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    void resolveTopLevel(int frameSize) {
+        topLevelFrameSize = frameSize;
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
-
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-
-            return text;
-        }
-
+        if (Numbers.isNumber(object)) return NumberFormatter.format(object);
         return object.toString();
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -106,143 +137,248 @@ class Interpreter implements Expr.Visitor<Object>,
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
+        // Methods that name their own local class capture its box before
+        // the class exists.
+        Box box = null;
+        if (stmt.boxed) {
+            box = new Box(null);
+            frame[stmt.slot] = box;
+        }
 
+        // Methods see super as the superclass's methods for each name they
+        // reach through it, found once here rather than at every use.
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            frame[stmt.superSlot] =
+                ((LumeClass)superclass).findMethods(stmt.superMethods);
         }
 
         Map<String, LumeFunction> methods = new HashMap<>();
+        if (superclass != null) {
+            methods.putAll(((LumeClass)superclass).methods);
+        }
+
         for (Stmt.Function method : stmt.methods) {
-            LumeFunction function = new LumeFunction(method, environment, 
+            LumeFunction function = new LumeFunction(method, capture(method), 
                 method.name.lexeme.equals("init"));
             methods.put(method.name.lexeme, function);
         }
 
         LumeClass klass = new LumeClass(stmt.name.lexeme,
-            (LumeClass)superclass, methods);
+            (LumeClass)superclass, methods, stmt.fieldNames);
 
-        if (superclass != null) {
-            environment = environment.enclosing;
+        if (box != null) {
+            box.value = klass;
+        } else {
+            declare(stmt.slot, false, stmt.name.lexeme, klass);
         }
-
-        environment.assign(stmt.name, klass);
         return null;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        throw new Break();
+    public Completion visitBreakStmt(Stmt.Break stmt) {
+        return Completion.BREAK;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LumeFunction function = new LumeFunction(stmt, environment, 
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.boxed) {
+            // A local function that calls itself captures its own box.
+            Box box = new Box(null);
+            frame[stmt.slot] = box;
+            box.value = new LumeFunction(stmt, capture(stmt), false);
+            return null;
+        }
+
+        LumeFunction function = new LumeFunction(stmt, capture(stmt), 
                 false);
-        environment.define(stmt.name.lexeme, function);
+        declare(stmt.slot, false, stmt.name.lexeme, function);
         return null;
     }
 
+    private Object[] capture(Stmt.Function function) {
+        int count = function.captureDepths.length;
+        if (count == 0) return NO_CAPTURES;
+
+        Object[] values = new Object[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = read(function.captureDepths[i],
+                function.captureSlots[i]);
+        }
+
+        return values;
+    }
+
+    private Object read(int depth, int slot) {
+        if (depth == Resolver.CAPTURED) return captures[slot];
+        return frame[slot];
+    }
+
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        return executeBlock(stmt.statements);
+    }
+
+    // Blocks keep their locals in the frame of the function around them,
+    // so entering one allocates nothing.
+    private Completion executeBlock(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            Completion completion = execute(statement);
+            if (completion != null) return completion;
+        }
+
         return null;
     }
 
-    void executeBlock(List<Stmt> statements,
-                    Environment environment) {
-        Environment previous = this.environment;
+    Object executeFunction(List<Stmt> body, Object[] frame,
+                           Object[] captures) {
+        Object[] previousFrame = this.frame;
+        Object[] previousCaptures = this.captures;
 
         try {
-            this.environment = environment;
+            this.frame = frame;
+            this.captures = captures;
+            if (executeBlock(body) != Completion.RETURN) return null;
 
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+            Object value = returnValue;
+            returnValue = null;
+            return value;
         } finally {
-            this.environment = previous;
+            this.frame = previousFrame;
+            this.captures = previousCaptures;
         }
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
 
         return null;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            try {
-                execute(stmt.body);
-            } catch (Break b) {
-                break;
-            }
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
+
+            completion = backEdge(stmt.loop);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
         }
         return null;
     }
 
+    // Once a loop is hot, the rest of it runs compiled: null means carry
+    // on interpreting, and otherwise how the compiled loop ended.
+    private Completion backEdge(Jit.Loop loop) {
+        Object value = Jit.backEdge(loop, frame);
+        if (value == Jit.FALLBACK) return null;
+        if (value == Jit.COMPLETED) return Completion.BREAK;
+        returnValue = value;
+        return Completion.RETURN;
+    }
+
+    // One loop variable serves every iteration, as with the old desugaring;
+    // locals declared in the body still get a fresh box or copy each pass.
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitForStmt(Stmt.For stmt) {
+        if (stmt.initializer != null) execute(stmt.initializer);
+
+        while (stmt.condition == null ||
+               isTruthy(evaluate(stmt.condition))) {
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
+
+            if (stmt.increment != null) evaluate(stmt.increment);
+
+            completion = backEdge(stmt.loop);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
+        }
+        return null;
+    }
+
+    @Override
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        declare(stmt.slot, stmt.boxed, stmt.name.lexeme, value);
         return null;
     }
 
+    private void declare(int slot, boolean boxed, String name,
+                         Object value) {
+        if (slot == Resolver.GLOBAL) {
+            globals.define(name, value);
+        } else {
+            frame[slot] = boxed ? new Box(value) : value;
+        }
+    }
+
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
         return null;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        if (stmt.printType.type == PRINT) System.out.print(stringify(value));
-        else System.out.println(stringify(value));
+    public Completion visitPrintStmt(Stmt.Print stmt) {
+        print(evaluate(stmt.expression), stmt.printType.type != PRINT);
         return null;
     }
 
+    void print(Object value, boolean newline) {
+        if (Numbers.isNumber(value)) {
+            NumberFormatter.print(out, value);
+        } else if (value instanceof Rope) {
+            Rope.print(out, value);
+        } else {
+            out.print(stringify(value));
+        }
+
+        if (newline) out.write(NEWLINE, 0, NEWLINE.length);
+    }
+
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LumeClass superclass = (LumeClass)environment.getAt(
-            distance, "super");
-        
-        LumeInstance object = (LumeInstance)environment.getAt(
-            distance - 1, "this");
+        LumeInstance object = (LumeInstance)read(expr.thisDepth,
+            expr.thisSlot);
+        return superMethod(expr).bind(object);
+    }
 
-        LumeFunction method = superclass.findMethod(expr.method.lexeme);
+    private LumeFunction superMethod(Expr.Super expr) {
+        LumeFunction method =
+            ((LumeFunction[])read(expr.depth, expr.slot))[expr.index];
 
         if (method == null) {
             throw new RuntimeError(expr.method,
                 "Undefined property '" + expr.method.lexeme + "'.");
         }
 
-        return method.bind(object);
+        return method;
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return read(expr.depth, expr.slot);
     }
 
     @Override
@@ -255,7 +391,7 @@ class Interpreter implements Expr.Visitor<Object>,
         }
     
         Object value = evaluate(expr.value);
-        ((LumeInstance)object).set(expr.name, value);
+        expr.cache.set((LumeInstance)object, expr.name, value);
         return value;
     }
 
@@ -263,7 +399,7 @@ class Interpreter implements Expr.Visitor<Object>,
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof LumeInstance) {
-            return ((LumeInstance)object).get(expr.name);
+            return expr.cache.get((LumeInstance)object, expr.name);
         }
     
         throw new RuntimeError(expr.name,
@@ -272,13 +408,106 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        List<Expr> arguments = expr.arguments;
+        int count = arguments.size();
+        Object callee;
+
+        // obj.method(...) passes obj straight into the method's frame
+        // instead of creating a bound method just for this call.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            Object object = evaluate(get.object);
+            if (!(object instanceof LumeInstance)) {
+                throw new RuntimeError(get.name,
+                    "Only instances have properties.");
+            }
+
+            LumeInstance instance = (LumeInstance)object;
+            LumeFunction method =
+                expr.cache.method(instance, get.name.lexeme);
+            if (method != null && method.arity() == count) {
+                return invoke(method, method.newFrame(instance),
+                    arguments);
+            }
+
+            callee = instance.get(get.name);
+        } else if (expr.callee instanceof Expr.Super) {
+            // super.method(...) runs with the current 'this' unbound.
+            Expr.Super target = (Expr.Super)expr.callee;
+            LumeFunction method = superMethod(target);
+            LumeInstance object = (LumeInstance)read(target.thisDepth,
+                target.thisSlot);
+            if (method.arity() == count) {
+                return invoke(method, method.newFrame(object), arguments);
+            }
+
+            callee = method.bind(object);
+        } else {
+            callee = evaluate(expr.callee);
+        }
+
+        // A Lume function or class with the right arity can't fail before
+        // the body runs, so the arguments go straight into its frame.
+        if (callee instanceof LumeFunction) {
+            LumeFunction function = (LumeFunction)callee;
+            if (function.arity() == count) {
+                return invoke(function, function.newFrame(), arguments);
+            }
+        } else if (callee instanceof LumeClass) {
+            LumeClass klass = (LumeClass)callee;
+            if (klass.arity() == count) {
+                LumeInstance instance = new LumeInstance(klass);
+                LumeFunction initializer = klass.initializer;
+                if (initializer != null) {
+                    invoke(initializer, initializer.newFrame(instance),
+                        arguments);
+                }
+
+                return instance;
+            }
+        }
+
+        switch (count) {
+            case 0:
+                return checkCall(expr, callee, 0).call0(this);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                return checkCall(expr, callee, 1).call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return checkCall(expr, callee, 2).call2(this, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return checkCall(expr, callee, 3).call3(this, a, b, c);
+            }
+            default: {
+                Object[] values = new Object[count];
+                for (int i = 0; i < count; i++) {
+                    values[i] = evaluate(arguments.get(i));
+                }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) { 
-            arguments.add(evaluate(argument));
+                return checkCall(expr, callee, count).call(this, values);
+            }
+        }
+    }
+
+    private Object invoke(LumeFunction function, Object[] frame,
+                          List<Expr> arguments) {
+        int slot = function.firstParameterSlot();
+        for (int i = 0; i < arguments.size(); i++) {
+            frame[slot + i] = evaluate(arguments.get(i));
         }
 
+        return function.invoke(this, frame);
+    }
+
+    private LumeCallable checkCall(Expr.Call expr, Object callee,
+                                   int count) {
         if (!(callee instanceof LumeCallable)) {
             throw new RuntimeError(expr.paren,
                 "Can only call functions and classes.");
@@ -286,41 +515,43 @@ class Interpreter implements Expr.Visitor<Object>,
 
         LumeCallable function = (LumeCallable)callee;
 
-        if (arguments.size() != function.arity()) {
+        if (count != function.arity()) {
             throw new RuntimeError(expr.paren, "Expected " +
                 function.arity() + " arguments but got " +
-                arguments.size() + ".");
+                count + ".");
         }
 
-        return function.call(this, arguments);
+        return function;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
+        assignVariable(expr.name, expr.depth, expr.slot, expr.boxed,
+            expr.global, value);
+        return value;
+    }
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+    private void assignVariable(Token name, int depth, int slot,
+                                boolean boxed, Globals.Cell global,
+                                Object value) {
+        if (depth == Resolver.GLOBAL) {
+            globals.assign(global, name, value);
+        } else if (boxed) {
+            ((Box)read(depth, slot)).value = value;
         } else {
-            globals.assign(expr.name, value);
+            frame[slot] = value;
         }
-        
-        return value;
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
-    }
-
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
-        } else {
-            return globals.get(name);
+        if (expr.depth == Resolver.GLOBAL) {
+            return globals.get(expr.global, expr.name);
         }
+
+        Object value = read(expr.depth, expr.slot);
+        return expr.boxed ? ((Box)value).value : value;
     }
 
     @Override
@@ -343,30 +574,32 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.MINUS) {
+            return boxNumber(evaluateNumber(expr));
+        }
+
         Object right = evaluate(expr.right);
     
         switch(expr.operator.type) {
-            case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double) right;
             case BANG:
                 return !isTruthy(right);
             case PLUS_PLUS:
             case MINUS_MINUS:
                 if (!(expr.right instanceof Expr.Variable)) {
                     throw new RuntimeError(expr.operator, 
-                        "Operand of '" + expr.operator.lexeme + "' must be a variable.");
+                        "Operand of '" + expr.operator.lexeme + "' must be a variable or field.");
                 }
     
-                if (!(right instanceof Double)) {
+                if (!Numbers.isNumber(right)) {
                     throw new RuntimeError(expr.operator, "Operand must be a number.");
                 }
     
-                double value = (double)right;
-                double updated = (expr.operator.type == TokenType.PLUS_PLUS) ? value + 1 : value - 1;
+                Object updated = Numbers.step(right,
+                    (expr.operator.type == TokenType.PLUS_PLUS) ? 1 : -1);
     
-                Token name = ((Expr.Variable)expr.right).name;
-                environment.assign(name, updated);
+                Expr.Variable variable = (Expr.Variable)expr.right;
+                assignVariable(variable.name, variable.depth, variable.slot,
+                    variable.boxed, variable.global, updated);
 
                 return updated;
             default:
@@ -382,28 +615,70 @@ class Interpreter implements Expr.Visitor<Object>,
 
         if (!(expr.left instanceof Expr.Variable)) {
             throw new RuntimeError(expr.operator, 
-                "Operand of '" + expr.operator.lexeme + "' must be a variable.");
+                "Operand of '" + expr.operator.lexeme + "' must be a variable or field.");
         }
 
-        if (!(left instanceof Double)) {
+        if (!Numbers.isNumber(left)) {
             throw new RuntimeError(expr.operator, "Operand must be a number.");
         }
 
-        double value = (double)left;
-        double updated = (expr.operator.type == TokenType.PLUS_PLUS) ? value + 1 : value - 1;
+        Object updated = Numbers.step(left,
+            (expr.operator.type == TokenType.PLUS_PLUS) ? 1 : -1);
 
-        Token name = ((Expr.Variable)expr.left).name;
-        environment.assign(name, updated);
+        Expr.Variable variable = (Expr.Variable)expr.left;
+        assignVariable(variable.name, variable.depth, variable.slot,
+                    variable.boxed, variable.global, updated);
 
-        return value;   
+        return left;
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) return;
+    // Compound assignment and ++/-- on a field: the object is evaluated
+    // once and the field's slot is read and written in place.
+    @Override
+    public Object visitUpdateExpr(Expr.Update expr) {
+        Object object = evaluate(expr.object);
+        if (!(object instanceof LumeInstance)) {
+            throw new RuntimeError(expr.name,
+                "Only instances have fields.");
+        }
+
+        LumeInstance instance = (LumeInstance)object;
+        int slot = expr.cache.slot(instance, expr.name);
+        Object old = (slot == -1) ?
+            instance.get(expr.name) : instance.values[slot];
+
+        Object updated;
+        switch (expr.operator.type) {
+            case PLUS_PLUS:
+            case MINUS_MINUS:
+                checkNumberOperand(expr.operator, old);
+                updated = Numbers.step(old,
+                    (expr.operator.type == TokenType.PLUS_PLUS) ? 1 : -1);
+                break;
+            case PLUS:
+                updated = add(expr.operator, old, evaluate(expr.value));
+                break;
+            default:
+                updated = Numbers.binary(expr.operator, old,
+                    evaluate(expr.value));
+                break;
+        }
+
+        if (slot == -1) {
+            expr.cache.set(instance, expr.name, updated);
+        } else {
+            instance.values[slot] = updated;
+        }
+
+        return expr.postfix ? old : updated;
+    }
+
+    static void checkNumberOperand(Token operator, Object operand) {
+        if (Numbers.isNumber(operand)) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
 
@@ -412,52 +687,36 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-
         switch(expr.operator.type) {
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left >= (double)right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left < (double)right;
-            case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left <= (double)right;
+            case LESS_EQUAL: {
+                long left = leftOperand(expr);
+                boolean leftIsDouble = numberIsDouble;
+                long right = rightOperand(expr);
+                return compare(expr, left, leftIsDouble,
+                    right, numberIsDouble);
+            }
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
+            case SLASH:
+            case STAR:
+            case PERCENT:
+            case AMPERSAND:
+            case PIPE:
+            case LESS_LESS:
+            case GREATER_GREATER:
+                return boxNumber(evaluateNumber(expr));
             case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
-                }
-
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
-                }
-
-                if (left instanceof String && right instanceof Double) {
-                    String rightString = right.toString();
-                    return (String)left + rightString.substring(0, rightString.length() - 2);
-                }
+                return add(expr);
+            default:
+                break;
+        }
 
-                if (left instanceof Double && right instanceof String) {
-                    String leftString = left.toString();
-                    return leftString.substring(0, leftString.length() - 2) + (String)right;
-                }
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
 
-                throw new RuntimeError(expr.operator,
-            "Operands must be numbers or strings.");
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
-            case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
+        switch(expr.operator.type) {
             case BANG_EQUAL: return !isEqual(left, right);
             case EQUAL_EQUAL: return isEqual(left, right);
             default:
@@ -467,17 +726,406 @@ class Interpreter implements Expr.Visitor<Object>,
         return null;
     }
 
-    private void checkNumberOperands(Token operator,
-                                Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
+    private Object add(Expr.Binary expr) {
+        if (expr.numericLeft && expr.numericRight) {
+            return boxNumber(evaluateNumber(expr));
+        }
+
+        Object left = evaluate(expr.left);
+        if (expr.numericRight) {
+            long right = evaluateNumber(expr.right);
+            boolean rightIsDouble = numberIsDouble;
+            if (!Numbers.isNumber(left)) {
+                expr.specialization = Specialization.GENERIC;
+                return add(expr.operator, left, boxNumber(right));
+            }
+
+            long number = unboxNumber(left);
+            return boxNumber(arithmetic(expr, number, numberIsDouble,
+                right, rightIsDouble));
+        }
+
+        Object right = evaluate(expr.right);
+        switch (expr.specialization) {
+            case STRING_ADD:
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    return Rope.concat(left, right);
+                }
+                break;
+            case UNINITIALIZED:
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    expr.specialization = Specialization.STRING_ADD;
+                    return Rope.concat(left, right);
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+            if (expr.specialization == Specialization.STRING_ADD) {
+                expr.specialization = Specialization.GENERIC;
+            }
+
+            long number = unboxNumber(left);
+            boolean leftIsDouble = numberIsDouble;
+            long other = unboxNumber(right);
+            return boxNumber(arithmetic(expr, number, leftIsDouble,
+                other, numberIsDouble));
+        }
+
+        expr.specialization = Specialization.GENERIC;
+        return add(expr.operator, left, right);
+    }
+
+    static Object add(Token operator, Object left, Object right) {
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+            return Numbers.binary(operator, left, right);
+        }
+
+        if (Rope.isString(left) && Rope.isString(right)) {
+            return Rope.concat(left, right);
+        }
+
+        if (Rope.isString(left) && Numbers.isNumber(right)) {
+            return Rope.concat(left, NumberFormatter.format(right));
+        }
+
+        if (Numbers.isNumber(left) && Rope.isString(right)) {
+            return Rope.concat(NumberFormatter.format(left), right);
+        }
+
+        throw new RuntimeError(operator,
+            "Operands must be numbers or strings.");
+    }
+
+    private long evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Variable) {
+            return unboxNumber(visitVariableExpr((Expr.Variable)expr));
+        }
+
+        if (expr instanceof Expr.Binary) {
+            return evaluateNumber((Expr.Binary)expr);
+        }
+
+        if (expr instanceof Expr.Unary &&
+            ((Expr.Unary)expr).operator.type == TokenType.MINUS) {
+            return evaluateNumber((Expr.Unary)expr);
+        }
+
+        if (expr instanceof Expr.Literal) {
+            return unboxNumber(((Expr.Literal)expr).value);
+        }
+
+        if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping)expr).expression);
+        }
+
+        // Type inference has proven that anything else yields a number.
+        return unboxNumber(evaluate(expr));
+    }
+
+    private long evaluateNumber(Expr.Binary expr) {
+        long left = leftOperand(expr);
+        boolean leftIsDouble = numberIsDouble;
+        long right = rightOperand(expr);
+        return arithmetic(expr, left, leftIsDouble, right, numberIsDouble);
+    }
+
+    private long evaluateNumber(Expr.Unary expr) {
+        long right;
+        if (expr.numericRight) {
+            right = evaluateNumber(expr.right);
+        } else {
+            Object value = evaluate(expr.right);
+            checkNumberOperand(expr.operator, value);
+            right = unboxNumber(value);
+        }
+
+        return negate(expr, right);
+    }
+
+    private long negate(Expr.Unary expr, long operand) {
+        switch (expr.specialization) {
+            case INTEGER_NEGATE:
+                if (numberIsDouble) break;
+                if (operand != Long.MIN_VALUE) return -operand;
+                return real(-(double)operand);
+            case REAL_NEGATE:
+                if (!numberIsDouble) break;
+                return real(-Double.longBitsToDouble(operand));
+            case UNINITIALIZED:
+                expr.specialization = Specialization.negate(numberIsDouble);
+                return negate(expr, operand);
+            default:
+                return negate(operand);
+        }
+
+        expr.specialization = Specialization.GENERIC;
+        return negate(operand);
+    }
+
+    private long negate(long operand) {
+        if (numberIsDouble) return real(-Double.longBitsToDouble(operand));
+        if (operand != Long.MIN_VALUE) return -operand;
+        return real(-(double)operand);
+    }
+
+    // The specialized variants only check that the operands still have
+    // the types the node specialized on, then compute directly; anything
+    // else turns the node generic.
+    private long arithmetic(Expr.Binary expr,
+                            long left, boolean leftIsDouble,
+                            long right, boolean rightIsDouble) {
+        if (expr.specialization == Specialization.GENERIC) {
+            return arithmetic(expr.operator, left, leftIsDouble,
+                right, rightIsDouble);
+        }
+
+        boolean integers = !leftIsDouble && !rightIsDouble;
+        boolean reals = leftIsDouble && rightIsDouble;
+
+        switch (expr.specialization) {
+            case INTEGER_ADD:
+                if (!integers) break;
+                if (Numbers.addIsExact(left, right)) {
+                    return integer(left + right);
+                }
+                return real((double)left + right);
+            case INTEGER_SUBTRACT:
+                if (!integers) break;
+                if (Numbers.subtractIsExact(left, right)) {
+                    return integer(left - right);
+                }
+                return real((double)left - right);
+            case INTEGER_MULTIPLY:
+                if (!integers) break;
+                if (Numbers.multiplyIsExact(left, right)) {
+                    return integer(left * right);
+                }
+                return real((double)left * right);
+            case INTEGER_DIVIDE:
+                if (!integers) break;
+                if (Numbers.divideIsExact(left, right)) {
+                    return integer(left / right);
+                }
+                return real((double)left / right);
+            case INTEGER_MODULO:
+                if (!integers) break;
+                if (right != 0) return integer(left % right);
+                return real((double)left % right);
+            case INTEGER_AND:
+                if (!integers) break;
+                return integer(left & right);
+            case INTEGER_OR:
+                if (!integers) break;
+                return integer(left | right);
+            case INTEGER_SHIFT_LEFT:
+                if (!integers) break;
+                Numbers.checkShift(expr.operator, right);
+                if (Numbers.shiftLeftIsExact(left, right)) {
+                    return integer(left << right);
+                }
+                return real(Numbers.shiftLeft(left, right));
+            case INTEGER_SHIFT_RIGHT:
+                if (!integers) break;
+                Numbers.checkShift(expr.operator, right);
+                return integer(left >> right);
+            case REAL_ADD:
+                if (!reals) break;
+                return real(toDouble(left, true) + toDouble(right, true));
+            case REAL_SUBTRACT:
+                if (!reals) break;
+                return real(toDouble(left, true) - toDouble(right, true));
+            case REAL_MULTIPLY:
+                if (!reals) break;
+                return real(toDouble(left, true) * toDouble(right, true));
+            case REAL_DIVIDE:
+                if (!reals) break;
+                return real(toDouble(left, true) / toDouble(right, true));
+            case REAL_MODULO:
+                if (!reals) break;
+                return real(toDouble(left, true) % toDouble(right, true));
+            case UNINITIALIZED:
+                expr.specialization = Specialization.of(expr.operator.type,
+                    leftIsDouble, rightIsDouble);
+                return arithmetic(expr, left, leftIsDouble,
+                    right, rightIsDouble);
+            default:
+                return arithmetic(expr.operator, left, leftIsDouble,
+                    right, rightIsDouble);
+        }
+
+        expr.specialization = Specialization.GENERIC;
+        return arithmetic(expr.operator, left, leftIsDouble,
+            right, rightIsDouble);
+    }
+
+    private long arithmetic(Token operator, long left, boolean leftIsDouble,
+                            long right, boolean rightIsDouble) {
+        TokenType type = operator.type;
+        if (!leftIsDouble && !rightIsDouble &&
+            Numbers.isExact(type, left, right)) {
+            return integer(Numbers.integer(type, left, right));
+        }
+
+        if (Numbers.isBitwise(type)) {
+            if (leftIsDouble) {
+                left = Numbers.toInteger(operator,
+                    Double.longBitsToDouble(left));
+            }
+
+            if (rightIsDouble) {
+                right = Numbers.toInteger(operator,
+                    Double.longBitsToDouble(right));
+            }
+
+            if (type == TokenType.LESS_LESS ||
+                type == TokenType.GREATER_GREATER) {
+                Numbers.checkShift(operator, right);
+            }
+            if (type == TokenType.LESS_LESS &&
+                !Numbers.shiftLeftIsExact(left, right)) {
+                return real(Numbers.shiftLeft(left, right));
+            }
+            return integer(Numbers.bitwise(type, left, right));
+        }
+
+        return real(Numbers.real(type,
+            toDouble(left, leftIsDouble), toDouble(right, rightIsDouble)));
+    }
+
+    private boolean compare(Expr.Binary expr,
+                            long left, boolean leftIsDouble,
+                            long right, boolean rightIsDouble) {
+        boolean integers = !leftIsDouble && !rightIsDouble;
+        boolean reals = leftIsDouble && rightIsDouble;
+
+        switch (expr.specialization) {
+            case INTEGER_GREATER:
+                if (!integers) break;
+                return left > right;
+            case INTEGER_GREATER_EQUAL:
+                if (!integers) break;
+                return left >= right;
+            case INTEGER_LESS:
+                if (!integers) break;
+                return left < right;
+            case INTEGER_LESS_EQUAL:
+                if (!integers) break;
+                return left <= right;
+            case REAL_GREATER:
+                if (!reals) break;
+                return toDouble(left, true) > toDouble(right, true);
+            case REAL_GREATER_EQUAL:
+                if (!reals) break;
+                return toDouble(left, true) >= toDouble(right, true);
+            case REAL_LESS:
+                if (!reals) break;
+                return toDouble(left, true) < toDouble(right, true);
+            case REAL_LESS_EQUAL:
+                if (!reals) break;
+                return toDouble(left, true) <= toDouble(right, true);
+            case UNINITIALIZED:
+                expr.specialization = Specialization.of(expr.operator.type,
+                    leftIsDouble, rightIsDouble);
+                return compare(expr, left, leftIsDouble,
+                    right, rightIsDouble);
+            default:
+                return compare(expr.operator.type, left, leftIsDouble,
+                    right, rightIsDouble);
+        }
+
+        expr.specialization = Specialization.GENERIC;
+        return compare(expr.operator.type, left, leftIsDouble,
+            right, rightIsDouble);
+    }
+
+    private boolean compare(TokenType type, long left, boolean leftIsDouble,
+                            long right, boolean rightIsDouble) {
+        if (!leftIsDouble && !rightIsDouble) {
+            return Numbers.compare(type, left, right);
+        }
 
-        throw new RuntimeError(operator, "Operands must be numbers.");
+        return Numbers.compare(type, toDouble(left, leftIsDouble),
+            toDouble(right, rightIsDouble));
     }
 
-    private boolean isEqual(Object a, Object b) {
+    private long leftOperand(Expr.Binary expr) {
+        if (expr.numericLeft) return evaluateNumber(expr.left);
+
+        Object left = evaluate(expr.left);
+        if (left instanceof Long) {
+            numberIsDouble = false;
+            return (long)left;
+        }
+
+        if (left instanceof Double) return unboxNumber(left);
+
+        // The right operand still runs before the error is reported.
+        evaluate(expr.right);
+        throw new RuntimeError(expr.operator, "Operands must be numbers.");
+    }
+
+    private long rightOperand(Expr.Binary expr) {
+        if (expr.numericRight) return evaluateNumber(expr.right);
+
+        Object right = evaluate(expr.right);
+        if (right instanceof Long) {
+            numberIsDouble = false;
+            return (long)right;
+        }
+
+        if (right instanceof Double) return unboxNumber(right);
+
+        throw new RuntimeError(expr.operator, "Operands must be numbers.");
+    }
+
+    private long unboxNumber(Object number) {
+        numberIsDouble = number instanceof Double;
+        if (numberIsDouble) {
+            return Double.doubleToRawLongBits((double)number);
+        }
+
+        return (long)number;
+    }
+
+    private long integer(long value) {
+        numberIsDouble = false;
+        return value;
+    }
+
+    private long real(double value) {
+        numberIsDouble = true;
+        return Double.doubleToRawLongBits(value);
+    }
+
+    private Object boxNumber(long number) {
+        if (numberIsDouble) return Double.longBitsToDouble(number);
+        return number;
+    }
+
+    private static double toDouble(long number, boolean isDouble) {
+        if (isDouble) return Double.longBitsToDouble(number);
+        return number;
+    }
+
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
 
+        if (a instanceof Long && b instanceof Double) {
+            return Numbers.equal((long)a, (double)b);
+        }
+
+        if (a instanceof Double && b instanceof Long) {
+            return Numbers.equal((long)b, (double)a);
+        }
+
+        if (a instanceof Rope || b instanceof Rope) {
+            return Rope.isString(a) && Rope.isString(b) && Rope.equal(a, b);
+        }
+
         return a.equals(b);
     }
 
@@ -0,0 +1,299 @@
+package lumeProject.lume;
+
+// The tier above the interpreters, and the policy for reaching it. Each
+// function counts its calls and each loop its back edges; once a function
+// has been called callThreshold times, JitCompiler turns it into JVM
+// bytecode in a hidden class, which HotSpot then optimizes like any other
+// Java method, and calls go straight to the compiled code from then on.
+// A loop that has gone round loopThreshold times is compiled the same
+// way, from the values its frame holds, and the rest of it runs compiled.
+// Short scripts never get that far and pay nothing for compiling.
+//
+// Compiled code only ever computes: it reads its locals and calls other
+// compiled functions, but prints nothing and writes no field. A compiled
+// loop keeps the locals and globals it assigns to itself and stores them
+// only when it is done. So when one of its guards fails part way
+// through, nothing it did can be seen, and the call or the loop simply
+// carries on in the interpreter from where it was entered.
+//
+// Code whose guards fail is dropped and its count starts again, so that
+// once it is hot again it is compiled for every type it has been entered
+// with. After MAX_DEOPTS of those it stays interpreted for good.
+final class Jit {
+    private Jit() {}
+
+    // Zero turns compiling off. Both are set from the command line.
+    static int callThreshold = 1000;
+    static int loopThreshold = 10000;
+    // Whether to report each change of tier on stderr.
+    static boolean trace = false;
+
+    static final int MAX_DEOPTS = 4;
+
+    interface Code {
+        // Returns FALLBACK when an argument isn't of the type the code
+        // was compiled for.
+        Object run(Object[] frame);
+    }
+
+    static final Object FALLBACK = new Object();
+    // What a compiled loop returns when it ran to its end; any other
+    // value is one the function running it returns.
+    static final Object COMPLETED = new Object();
+
+    // The back edges one loop statement has taken, and the code for the
+    // rest of it once it is compiled, with the types it was compiled for
+    // and the times it has deopted. The Resolver gives every while and
+    // for statement one.
+    static final class Loop {
+        final Stmt statement;
+        final int line;
+        int backEdges = 0;
+        Code compiled = null;
+        int deopts = 0;
+        int[] entryTypes = null;
+
+        Loop(Stmt statement, int line) {
+            this.statement = statement;
+            this.line = line;
+        }
+    }
+
+    // Thrown when compiled code can't go on: a global no longer holds
+    // the function a call was compiled against, a field read meets an
+    // instance or a value other than the one it was compiled for, or a
+    // function fell off its end to return nil.
+    static final class Deopt extends RuntimeException {
+        Deopt() {
+            super(null, null, false, false);
+        }
+    }
+
+    static final Deopt DEOPT = new Deopt();
+
+    private static final Token[] OPERATORS =
+        new Token[TokenType.values().length];
+
+    static {
+        for (TokenType type : TokenType.values()) {
+            OPERATORS[type.ordinal()] = new Token(type, "", null, 0);
+        }
+    }
+
+    static void compile(LumeFunction function, Object[] frame) {
+        Stmt.Function declaration = function.declaration;
+        String name = describe(declaration);
+        if (!JitCompiler.isCompilable(function)) {
+            trace(name + ": stays interpreted, not compilable");
+            return;
+        }
+
+        if (declaration.entryTypes == null) {
+            declaration.entryTypes = new int[frame.length];
+        }
+        try {
+            declaration.compiled = JitCompiler.compile(function, frame,
+                declaration.entryTypes);
+            trace(name + ": interpreted -> compiled after " +
+                callThreshold + " calls");
+        } catch (JitCompiler.Unsupported | IllegalStateException e) {
+            trace(name + ": stays interpreted, not compilable");
+        }
+    }
+
+    // An integer overflowing throws ArithmeticException, and an operator
+    // that would report an error throws RuntimeError; the interpreter
+    // meets the same case and handles it. Either way, or when an argument
+    // isn't of the type the code was compiled for, the code is dropped.
+    static Object run(Stmt.Function declaration, Object[] frame) {
+        try {
+            Object value = declaration.compiled.run(frame);
+            if (value != FALLBACK) return value;
+        } catch (Deopt | ArithmeticException | RuntimeError e) {
+            deopt(declaration, reason(e));
+            return FALLBACK;
+        }
+        deopt(declaration, "an argument's type changed");
+        return FALLBACK;
+    }
+
+    private static void deopt(Stmt.Function declaration, String reason) {
+        declaration.compiled = null;
+        String name = describe(declaration) + ": compiled -> interpreted, " +
+            reason;
+        if (++declaration.deopts < MAX_DEOPTS) {
+            declaration.invocations = 0;
+            trace(name + "; recompiles after " + callThreshold +
+                " more calls");
+        } else {
+            trace(name + "; stays interpreted");
+        }
+    }
+
+    // Called by the interpreters after each pass round a loop, at the
+    // point where the next pass starts. Once the loop is hot, runs the
+    // rest of it compiled, returning COMPLETED or the value the function
+    // returns; FALLBACK means the interpreter goes on with the loop.
+    static Object backEdge(Loop loop, Object[] frame) {
+        if (loop.compiled == null) {
+            // Counting stops at the threshold, whether or not the loop
+            // compiles, until the code deopts.
+            if (loopThreshold <= 0 || loop.backEdges >= loopThreshold) {
+                return FALLBACK;
+            }
+            if (++loop.backEdges != loopThreshold) return FALLBACK;
+
+            String name = "loop at line " + loop.line;
+            if (loop.entryTypes == null) {
+                loop.entryTypes = new int[frame.length];
+            }
+            try {
+                loop.compiled = JitCompiler.compile(loop.statement, frame,
+                    loop.entryTypes);
+                trace(name + ": interpreted -> compiled after " +
+                    loopThreshold + " back edges");
+            } catch (JitCompiler.Unsupported | IllegalStateException e) {
+                trace(name + ": stays interpreted, not compilable");
+                return FALLBACK;
+            }
+        }
+
+        try {
+            Object value = loop.compiled.run(frame);
+            if (value != FALLBACK) return value;
+        } catch (Deopt | ArithmeticException | RuntimeError e) {
+            deopt(loop, reason(e));
+            return FALLBACK;
+        }
+        deopt(loop, "a value's type changed");
+        return FALLBACK;
+    }
+
+    private static void deopt(Loop loop, String reason) {
+        loop.compiled = null;
+        String name = "loop at line " + loop.line +
+            ": compiled -> interpreted, " + reason;
+        if (++loop.deopts < MAX_DEOPTS) {
+            loop.backEdges = 0;
+            trace(name + "; recompiles after " + loopThreshold +
+                " more back edges");
+        } else {
+            trace(name + "; stays interpreted");
+        }
+    }
+
+    private static String describe(Stmt.Function declaration) {
+        return declaration.name.lexeme + " (line " +
+            declaration.name.line + ")";
+    }
+
+    private static String reason(RuntimeException e) {
+        if (e instanceof Deopt) return "a guard failed";
+        if (e instanceof ArithmeticException) return "arithmetic overflowed";
+        return "an operator met a value it can't take";
+    }
+
+    private static void trace(String message) {
+        if (trace) System.err.println("[tier] " + message);
+    }
+
+    // The helpers below are called from compiled code.
+
+    static void check(Object cell, Object declaration) {
+        Object value = ((Globals.Cell)cell).value;
+        if (!(value instanceof LumeFunction) ||
+            ((LumeFunction)value).declaration != declaration) {
+            throw DEOPT;
+        }
+    }
+
+    // A field read checks the instance's shape, as a call checks its
+    // global, and then the type of the value.
+    static Object field(Object instance, Object shape, int slot) {
+        if (!(instance instanceof LumeInstance) ||
+            ((LumeInstance)instance).shape != shape) {
+            throw DEOPT;
+        }
+        return ((LumeInstance)instance).values[slot];
+    }
+
+    static long longField(Object instance, Object shape, int slot) {
+        Object value = field(instance, shape, slot);
+        if (!(value instanceof Long)) throw DEOPT;
+        return (long)value;
+    }
+
+    static double doubleField(Object instance, Object shape, int slot) {
+        Object value = field(instance, shape, slot);
+        if (!(value instanceof Double)) throw DEOPT;
+        return (double)value;
+    }
+
+    static boolean booleanField(Object instance, Object shape, int slot) {
+        Object value = field(instance, shape, slot);
+        if (!(value instanceof Boolean)) throw DEOPT;
+        return (boolean)value;
+    }
+
+    static Object instanceField(Object instance, Object shape, int slot) {
+        Object value = field(instance, shape, slot);
+        if (!(value instanceof LumeInstance)) throw DEOPT;
+        return value;
+    }
+
+    // A compiled loop reads the globals it uses when it starts and
+    // assigns the ones it changed when it ends.
+    static Object value(Object cell) {
+        return ((Globals.Cell)cell).value;
+    }
+
+    static void store(Object cell, Object value) {
+        ((Globals.Cell)cell).value = value;
+    }
+
+    static Object divide(long a, long b) {
+        if (Numbers.divideIsExact(a, b)) return a / b;
+        return (double)a / b;
+    }
+
+    static Object binary(Object a, Object b, int operator) {
+        return Numbers.binary(OPERATORS[operator], a, b);
+    }
+
+    // A bitwise operator always has a long result here: a left shift
+    // that loses bits overflows, as with Math's exact operations.
+    static long bitwise(Object a, Object b, int operator) {
+        Object result = Numbers.binary(OPERATORS[operator], a, b);
+        if (!(result instanceof Long)) throw new ArithmeticException();
+        return (long)result;
+    }
+
+    static long shiftLeft(long a, long b) {
+        Numbers.checkShift(OPERATORS[TokenType.LESS_LESS.ordinal()], b);
+        if (!Numbers.shiftLeftIsExact(a, b)) throw new ArithmeticException();
+        return a << b;
+    }
+
+    static long shiftRight(long a, long b) {
+        Numbers.checkShift(
+            OPERATORS[TokenType.GREATER_GREATER.ordinal()], b);
+        return a >> b;
+    }
+
+    static boolean test(Object a, Object b, int operator) {
+        return (boolean)Numbers.binary(OPERATORS[operator], a, b);
+    }
+
+    // Doubles are equal as Double.equals has it, like isEqual.
+    static boolean equal(double a, double b) {
+        return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+    }
+
+    static boolean equal(long a, double b) {
+        return Numbers.equal(a, b);
+    }
+
+    static boolean equal(double a, long b) {
+        return Numbers.equal(b, a);
+    }
+}
@@ -0,0 +1,1317 @@
+package lumeProject.lume;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Translates a hot function or method, and every global function it
+// calls, into static methods of one hidden class. Only numeric code
+// qualifies: locals, parameters, number and boolean literals, operators,
+// control flow, calls to global functions of the same kind, and reads of
+// fields whose site has only seen one shape. Anything else, a print, a
+// field write, a string or a closure, makes the function Unsupported and
+// it stays in the interpreter.
+//
+// Each local gets one JVM type for the whole function, found by running
+// the translation until the types stop changing: integers are longs,
+// reals are doubles, and a variable that holds both is a boxed number.
+// The long arithmetic speculates that it won't overflow; Math's exact
+// operations throw when it does, and so does a call whose global no
+// longer holds the function it was compiled against, or a field read on
+// an instance of another shape, or of a value of another type, than the
+// one it was compiled for. Jit catches any of these and runs the call
+// again in the interpreter.
+//
+// A hot loop is compiled the same way, entered from the frame it is
+// running in: the locals it uses get the types their values have there,
+// and the globals it uses are kept in locals of their own until the loop
+// ends.
+final class JitCompiler implements Expr.Visitor<Integer>,
+                                   Stmt.Visitor<Void> {
+    static final class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Unsupported UNSUPPORTED = new Unsupported();
+
+    // Types form a lattice joined by OR: NONE is not yet known, and a
+    // long joined with a double is a boxed NUMBER. BOOLEAN and INSTANCE
+    // join with nothing else.
+    private static final int NONE = 0;
+    private static final int LONG = 1;
+    private static final int DOUBLE = 2;
+    private static final int NUMBER = 3;
+    private static final int BOOLEAN = 4;
+    private static final int INSTANCE = 8;
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String JIT = "lumeProject/lume/Jit";
+    private static final String NUMBERS = "lumeProject/lume/Numbers";
+    private static final String MATH = "java/lang/Math";
+    private static final String UNARY_OBJECT =
+        "(Ljava/lang/Object;)Ljava/lang/Object;";
+    private static final String BINARY_OBJECT =
+        "(Ljava/lang/Object;Ljava/lang/Object;I)Ljava/lang/Object;";
+
+    // A function being compiled, with the type of each frame slot. The
+    // parameters are the first slots. A loop has no declaration, and its
+    // slots go on past the frame's with one for each global it uses.
+    private static final class Target {
+        final Stmt.Function declaration;
+        final String name;
+        int[] slots;
+        int result = NONE;
+
+        Target(Stmt.Function declaration, int index) {
+            this.declaration = declaration;
+            this.name = declaration.name.lexeme + "$" + index;
+            this.slots = new int[declaration.frameSize];
+        }
+
+        Target(int frameSize) {
+            this.declaration = null;
+            this.name = "run";
+            this.slots = new int[frameSize];
+        }
+
+        String descriptor() {
+            StringBuilder descriptor = new StringBuilder("(");
+            for (int i = 0; i < parameterSlots(declaration); i++) {
+                descriptor.append(JitCompiler.descriptor(slots[i]));
+            }
+            return descriptor.append(")")
+                .append(JitCompiler.descriptor(result))
+                .toString();
+        }
+    }
+
+    private final String className;
+    private final List<Target> targets = new ArrayList<>();
+    private final Map<Stmt.Function, Target> byDeclaration =
+        new IdentityHashMap<>();
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes =
+        new IdentityHashMap<>();
+    // The type each expression had in the previous pass, so an operator
+    // knows how to convert its left operand before the right one is seen.
+    private final Map<Expr, Integer> types = new IdentityHashMap<>();
+    private final List<ClassFile.Label> loopExits = new ArrayList<>();
+    private boolean changed;
+
+    private Target target;
+    private ClassFile.Code code;
+    private int[] locals;
+    private int nextLocal;
+
+    // The frame compiling started from, which field reads sample.
+    private Object[] frame;
+
+    // For a loop: the loop, the slots declared inside it, the other slots
+    // it uses, which it reads from the frame, and the slots it assigns,
+    // which it stores back.
+    private Stmt loop;
+    private final BitSet declared = new BitSet();
+    private final BitSet inputs = new BitSet();
+    private final BitSet assigned = new BitSet();
+    private final Map<Globals.Cell, Integer> globalSlots =
+        new LinkedHashMap<>();
+
+    private JitCompiler(String className) {
+        this.className = className;
+    }
+
+    static boolean isCompilable(LumeFunction function) {
+        Stmt.Function declaration = function.declaration;
+        // AotCompiler's declarations have no body here; theirs is
+        // already bytecode.
+        return function.chunk == null && !declaration.body.isEmpty() &&
+            !function.isInitializer &&
+            declaration.captureDepths.length == 0 &&
+            declaration.boxedParams == null;
+    }
+
+    // Compiles the function for arguments of the types now in its frame,
+    // joined into the types it was compiled for before, if any.
+    static Jit.Code compile(LumeFunction function, Object[] frame,
+                            int[] types) {
+        String className = "lumeProject/lume/Jit$" +
+            function.declaration.name.lexeme;
+        JitCompiler compiler = new JitCompiler(className);
+        Target entry = compiler.target(function.declaration);
+        for (int i = 0; i < parameterSlots(function.declaration); i++) {
+            types[i] = compiler.join(types[i], typeOfValue(frame[i]));
+            entry.slots[i] = types[i];
+        }
+        compiler.frame = frame;
+
+        compiler.settle();
+
+        ClassFile file = compiler.emit();
+        compiler.bridge(file, entry);
+        return compiler.define(file);
+    }
+
+    // Compiles the rest of a loop for the values now in its frame, joined
+    // like a function's arguments, to be entered where a pass round it
+    // starts.
+    static Jit.Code compile(Stmt loop, Object[] frame, int[] types) {
+        JitCompiler compiler = new JitCompiler("lumeProject/lume/Jit$loop");
+        Target entry = new Target(frame.length);
+        compiler.targets.add(entry);
+        compiler.loop = loop;
+        compiler.frame = frame;
+
+        compiler.declared(loop instanceof Stmt.While ?
+            ((Stmt.While)loop).body : ((Stmt.For)loop).body);
+        for (int slot = 0; slot < frame.length; slot++) {
+            if (!compiler.declared.get(slot) && isValue(frame[slot])) {
+                types[slot] = compiler.join(types[slot],
+                    typeOfValue(frame[slot]));
+                entry.slots[slot] = types[slot];
+            }
+        }
+
+        compiler.settle();
+        return compiler.define(compiler.emit());
+    }
+
+    // Marks the slots of the variables declared inside a statement.
+    private void declared(Stmt stmt) {
+        if (stmt instanceof Stmt.Var) {
+            int slot = ((Stmt.Var)stmt).slot;
+            if (slot >= 0) declared.set(slot);
+        } else if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                declared(statement);
+            }
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If branch = (Stmt.If)stmt;
+            declared(branch.thenBranch);
+            if (branch.elseBranch != null) declared(branch.elseBranch);
+        } else if (stmt instanceof Stmt.While) {
+            declared(((Stmt.While)stmt).body);
+        } else if (stmt instanceof Stmt.For) {
+            Stmt.For loop = (Stmt.For)stmt;
+            if (loop.initializer != null) declared(loop.initializer);
+            declared(loop.body);
+        }
+    }
+
+    private static boolean isValue(Object value) {
+        return value instanceof Long || value instanceof Double ||
+            value instanceof Boolean || value instanceof LumeInstance;
+    }
+
+    // A method takes its receiver as the first parameter.
+    private static int parameterSlots(Stmt.Function declaration) {
+        return declaration.params.size() + (declaration.isMethod ? 1 : 0);
+    }
+
+    private ClassFile emit() {
+        ClassFile file = new ClassFile(className);
+        file.field(ClassFile.ACC_STATIC, "K", "[Ljava/lang/Object;");
+        for (Target target : targets) {
+            function(file, target);
+        }
+        constructor(file);
+        return file;
+    }
+
+    private Jit.Code define(ClassFile file) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                .defineHiddenClass(file.toBytes(OBJECT,
+                    "lumeProject/lume/Jit$Code"), true);
+            Class<?> compiled = lookup.lookupClass();
+            compiled.getDeclaredField("K").set(null, constants.toArray());
+            return (Jit.Code)compiled.getDeclaredConstructor()
+                .newInstance();
+        } catch (ReflectiveOperationException | LinkageError error) {
+            throw UNSUPPORTED;
+        }
+    }
+
+    private static int typeOfValue(Object value) {
+        if (value instanceof Long) return LONG;
+        if (value instanceof Double) return DOUBLE;
+        if (value instanceof Boolean) return BOOLEAN;
+        if (value instanceof LumeInstance) return INSTANCE;
+        throw UNSUPPORTED;
+    }
+
+    private Target target(Stmt.Function declaration) {
+        Target target = byDeclaration.get(declaration);
+        if (target == null) {
+            target = new Target(declaration, targets.size());
+            targets.add(target);
+            byDeclaration.put(declaration, target);
+        }
+        return target;
+    }
+
+    private int constant(Object value) {
+        Integer index = constantIndexes.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    // Translates every function into throwaway code until no type
+    // changes. Functions found along the way join in.
+    private void settle() {
+        for (int pass = 0; ; pass++) {
+            if (pass == 16) throw UNSUPPORTED;
+
+            changed = false;
+            ClassFile scratch = new ClassFile(className);
+            for (int i = 0; i < targets.size(); i++) {
+                function(scratch, targets.get(i));
+            }
+
+            if (!changed) break;
+        }
+
+        for (Target target : targets) {
+            if (target.declaration != null && target.result == NONE) {
+                throw UNSUPPORTED;
+            }
+        }
+    }
+
+    private void function(ClassFile file, Target target) {
+        if (target.declaration == null) {
+            loop(file, target);
+            return;
+        }
+
+        this.target = target;
+        code = file.method(ClassFile.ACC_STATIC, target.name,
+            target.descriptor());
+
+        int[] slots = target.slots;
+        int arity = parameterSlots(target.declaration);
+        locals = new int[slots.length];
+        int next = 0;
+        for (int slot = 0; slot < slots.length; slot++) {
+            locals[slot] = next;
+            next += words(slots[slot]);
+        }
+
+        // Every local starts out zero, so the verifier sees each one
+        // assigned on every path.
+        for (int slot = arity; slot < slots.length; slot++) {
+            switch (slots[slot]) {
+                case LONG: code.pushLong(0); break;
+                case DOUBLE: code.pushDouble(0); break;
+                case NUMBER: code.pushLong(0); box(code, LONG); break;
+                case BOOLEAN: code.pushInt(0); break;
+                case INSTANCE: code.op(ClassFile.ACONST_NULL, 1); break;
+                default: continue;
+            }
+            code.local(store(slots[slot]), locals[slot]);
+        }
+
+        for (Stmt statement : target.declaration.body) {
+            statement.accept(this);
+            if (ends(statement)) break;
+        }
+
+        // Falling off the end returns nil, which compiled code can't.
+        code.getStatic(JIT, "DEOPT", "LlumeProject/lume/Jit$Deopt;");
+        code.op(ClassFile.ATHROW, -1);
+    }
+
+    // Jit.Code.run for a loop: takes the values it uses from the frame
+    // and the globals, falling back when one isn't of the type the code
+    // was compiled for, then runs the loop and stores what it assigned.
+    private void loop(ClassFile file, Target target) {
+        this.target = target;
+        code = file.method(ClassFile.ACC_PUBLIC, "run",
+            "([Ljava/lang/Object;)Ljava/lang/Object;");
+
+        int[] slots = target.slots;
+        locals = new int[slots.length];
+        nextLocal = 2;
+        for (int slot = 0; slot < slots.length; slot++) {
+            locals[slot] = nextLocal;
+            nextLocal += words(slots[slot]);
+        }
+
+        ClassFile.Label fallback = new ClassFile.Label();
+        boolean checked = false;
+        for (int slot = 0; slot < slots.length; slot++) {
+            int type = slots[slot];
+            if (slot >= frame.length) {
+                constant(code, global(slot));
+                code.invoke(ClassFile.INVOKESTATIC, JIT, "value",
+                    UNARY_OBJECT);
+            } else if (inputs.get(slot)) {
+                code.local(ClassFile.ALOAD, 1);
+                code.pushInt(slot);
+                code.op(ClassFile.AALOAD, -1);
+            } else {
+                if (!declared.get(slot)) continue;
+                switch (type) {
+                    case LONG: code.pushLong(0); break;
+                    case DOUBLE: code.pushDouble(0); break;
+                    case NUMBER: code.pushLong(0); box(code, LONG); break;
+                    case BOOLEAN: code.pushInt(0); break;
+                    case INSTANCE:
+                        code.op(ClassFile.ACONST_NULL, 1);
+                        break;
+                    default: continue;
+                }
+                code.local(store(type), locals[slot]);
+                continue;
+            }
+
+            code.op(ClassFile.DUP, 1);
+            if (type == NUMBER) {
+                code.invoke(ClassFile.INVOKESTATIC, NUMBERS, "isNumber",
+                    "(Ljava/lang/Object;)Z");
+            } else {
+                code.type(ClassFile.INSTANCEOF, boxClass(type));
+            }
+            code.jump(ClassFile.IFEQ, fallback);
+            if (type != NUMBER && type != INSTANCE) unbox(code, type);
+            code.local(store(type), locals[slot]);
+            checked = true;
+        }
+
+        if (loop instanceof Stmt.While) {
+            Stmt.While stmt = (Stmt.While)loop;
+            loop(stmt.condition, stmt.body, null);
+        } else {
+            Stmt.For stmt = (Stmt.For)loop;
+            loop(stmt.condition, stmt.body, stmt.increment);
+        }
+        storeAssigned();
+        code.getStatic(JIT, "COMPLETED", "Ljava/lang/Object;");
+        code.op(ClassFile.ARETURN, -1);
+
+        if (checked) {
+            code.place(fallback);
+            code.op(ClassFile.POP, -1);
+            code.getStatic(JIT, "FALLBACK", "Ljava/lang/Object;");
+            code.op(ClassFile.ARETURN, -1);
+        }
+    }
+
+    private Globals.Cell global(int slot) {
+        for (Map.Entry<Globals.Cell, Integer> entry :
+                 globalSlots.entrySet()) {
+            if (entry.getValue() == slot) return entry.getKey();
+        }
+        throw new IllegalStateException("No global in slot " + slot + ".");
+    }
+
+    // Stores the frame slots and globals the loop assigned.
+    private void storeAssigned() {
+        int[] slots = target.slots;
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (!assigned.get(slot)) continue;
+            int type = slots[slot];
+
+            if (slot >= frame.length) {
+                constant(code, global(slot));
+                code.local(load(type), locals[slot]);
+                box(code, type);
+                code.invoke(ClassFile.INVOKESTATIC, JIT, "store",
+                    "(Ljava/lang/Object;Ljava/lang/Object;)V");
+            } else if (inputs.get(slot)) {
+                code.local(ClassFile.ALOAD, 1);
+                code.pushInt(slot);
+                code.local(load(type), locals[slot]);
+                box(code, type);
+                code.op(ClassFile.AASTORE, -3);
+            }
+        }
+    }
+
+    private void constructor(ClassFile file) {
+        ClassFile.Code init = file.method(ClassFile.ACC_PUBLIC, "<init>",
+            "()V");
+        init.local(ClassFile.ALOAD, 0);
+        init.invoke(ClassFile.INVOKESPECIAL, OBJECT, "<init>", "()V");
+        init.op(ClassFile.RETURN, 0);
+    }
+
+    // Jit.Code.run: unboxes the arguments in the frame, falling back
+    // when one isn't of the type the code was compiled for.
+    private void bridge(ClassFile file, Target entry) {
+        ClassFile.Code run = file.method(ClassFile.ACC_PUBLIC, "run",
+            "([Ljava/lang/Object;)Ljava/lang/Object;");
+        ClassFile.Label fallback = new ClassFile.Label();
+        int arity = parameterSlots(entry.declaration);
+        int[] arguments = new int[arity];
+        int next = 2;
+
+        for (int i = 0; i < arity; i++) {
+            int type = entry.slots[i];
+            run.local(ClassFile.ALOAD, 1);
+            run.pushInt(i);
+            run.op(ClassFile.AALOAD, -1);
+            run.op(ClassFile.DUP, 1);
+            if (type == NUMBER) {
+                run.invoke(ClassFile.INVOKESTATIC, NUMBERS, "isNumber",
+                    "(Ljava/lang/Object;)Z");
+            } else {
+                run.type(ClassFile.INSTANCEOF, boxClass(type));
+            }
+            run.jump(ClassFile.IFEQ, fallback);
+            if (type != NUMBER && type != INSTANCE) unbox(run, type);
+
+            arguments[i] = next;
+            run.local(store(type), next);
+            next += words(type);
+        }
+
+        for (int i = 0; i < arity; i++) {
+            run.local(load(entry.slots[i]), arguments[i]);
+        }
+        run.invoke(ClassFile.INVOKESTATIC, className, entry.name,
+            entry.descriptor());
+        box(run, entry.result);
+        run.op(ClassFile.ARETURN, -1);
+
+        run.place(fallback);
+        run.op(ClassFile.POP, -1);
+        run.getStatic(JIT, "FALLBACK", "Ljava/lang/Object;");
+        run.op(ClassFile.ARETURN, -1);
+    }
+
+    private static boolean ends(Stmt statement) {
+        return statement instanceof Stmt.Return ||
+            statement instanceof Stmt.Break;
+    }
+
+    // Emits an expression and records its type.
+    private int emit(Expr expr) {
+        return record(expr, expr.accept(this));
+    }
+
+    private int record(Expr expr, int type) {
+        Integer old = types.put(expr, type);
+        if (old == null || old != type) changed = true;
+        return type;
+    }
+
+    private int typeOf(Expr expr) {
+        return types.getOrDefault(expr, NONE);
+    }
+
+    private int join(int a, int b) {
+        int type = a | b;
+        if (a != NONE && b != NONE && a != b && (type & ~NUMBER) != 0) {
+            throw UNSUPPORTED;
+        }
+        return type;
+    }
+
+    private int widenSlot(int[] slots, int slot, int type) {
+        int joined = join(slots[slot], type);
+        if (joined != slots[slot]) {
+            slots[slot] = joined;
+            changed = true;
+        }
+        return joined;
+    }
+
+    private int localSlot(Expr.Variable variable) {
+        return slot(variable.depth, variable.slot, variable.boxed,
+            variable.global);
+    }
+
+    // The slot a variable is in. A loop can also use the globals and the
+    // locals from before it that hold a number or a boolean.
+    private int slot(int depth, int slot, boolean boxed,
+                     Globals.Cell global) {
+        if (boxed) throw UNSUPPORTED;
+        if (target.declaration == null && depth == Resolver.GLOBAL) {
+            return globalSlot(global);
+        }
+        if (depth != 0) throw UNSUPPORTED;
+
+        if (target.declaration == null && !declared.get(slot)) {
+            if (!isValue(frame[slot])) throw UNSUPPORTED;
+            inputs.set(slot);
+        }
+        return slot;
+    }
+
+    private int globalSlot(Globals.Cell global) {
+        Integer slot = globalSlots.get(global);
+        if (slot != null) return slot;
+
+        int type = typeOfValue(global.value);
+        slot = target.slots.length;
+        target.slots = Arrays.copyOf(target.slots, slot + 1);
+        target.slots[slot] = type;
+        locals = Arrays.copyOf(locals, slot + 1);
+        locals[slot] = nextLocal;
+        nextLocal += words(type);
+        globalSlots.put(global, slot);
+        changed = true;
+        return slot;
+    }
+
+    private void assign(int slot) {
+        if (target.declaration == null) assigned.set(slot);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+            if (ends(statement)) break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        int type = emit(stmt.expression);
+        code.op(words(type) == 2 ? ClassFile.POP2 : ClassFile.POP,
+            -words(type));
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.boxed || stmt.initializer == null) throw UNSUPPORTED;
+
+        int value = emit(stmt.initializer);
+        int type = widenSlot(target.slots, stmt.slot, value);
+        convert(value, type);
+        code.local(store(type), locals[stmt.slot]);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        ClassFile.Label otherwise = new ClassFile.Label();
+        jump(stmt.condition, false, otherwise);
+        stmt.thenBranch.accept(this);
+
+        if (stmt.elseBranch == null) {
+            code.place(otherwise);
+            return null;
+        }
+
+        ClassFile.Label end = new ClassFile.Label();
+        code.jump(ClassFile.GOTO, end);
+        code.place(otherwise);
+        stmt.elseBranch.accept(this);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        loop(stmt.condition, stmt.body, null);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        if (stmt.initializer != null) stmt.initializer.accept(this);
+        loop(stmt.condition, stmt.body, stmt.increment);
+        return null;
+    }
+
+    private void loop(Expr condition, Stmt body, Expr increment) {
+        ClassFile.Label top = new ClassFile.Label();
+        ClassFile.Label exit = new ClassFile.Label();
+        code.place(top);
+        if (condition != null) jump(condition, false, exit);
+
+        loopExits.add(exit);
+        body.accept(this);
+        loopExits.remove(loopExits.size() - 1);
+
+        if (increment != null) {
+            visitExpressionStmt(new Stmt.Expression(increment));
+        }
+        code.jump(ClassFile.GOTO, top);
+        code.place(exit);
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        code.jump(ClassFile.GOTO, loopExits.get(loopExits.size() - 1));
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) throw UNSUPPORTED;
+
+        // A loop returns for the function running it, as a boxed value.
+        if (target.declaration == null) {
+            box(code, emit(stmt.value));
+            storeAssigned();
+            code.op(ClassFile.ARETURN, -1);
+            return null;
+        }
+
+        int value = emit(stmt.value);
+        int type = join(target.result, value);
+        if (type != target.result) {
+            target.result = type;
+            changed = true;
+        }
+        convert(value, type);
+        code.op(returnOp(type), -words(type));
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        throw UNSUPPORTED;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw UNSUPPORTED;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw UNSUPPORTED;
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value instanceof Long) {
+            code.pushLong((long)value);
+            return LONG;
+        }
+        if (value instanceof Double) {
+            code.pushDouble((double)value);
+            return DOUBLE;
+        }
+        if (value instanceof Boolean) {
+            code.pushInt((boolean)value ? 1 : 0);
+            return BOOLEAN;
+        }
+        throw UNSUPPORTED;
+    }
+
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+        return emit(expr.expression);
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+        int slot = localSlot(expr);
+        int type = target.slots[slot];
+        code.local(load(type), locals[slot]);
+        return type;
+    }
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+        int slot = slot(expr.depth, expr.slot, expr.boxed, expr.global);
+        assign(slot);
+
+        int value = emit(expr.value);
+        int type = widenSlot(target.slots, slot, value);
+        convert(value, type);
+        code.op(words(type) == 2 ? ClassFile.DUP2 : ClassFile.DUP,
+            words(type));
+        code.local(store(type), locals[slot]);
+        return type;
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+        switch (expr.operator.type) {
+            case BANG:
+                return condition(expr);
+            case MINUS: {
+                int type = emit(expr.right);
+                switch (type) {
+                    case LONG:
+                        code.invoke(ClassFile.INVOKESTATIC, MATH,
+                            "negateExact", "(J)J");
+                        break;
+                    case DOUBLE:
+                        code.op(ClassFile.DNEG, 0);
+                        break;
+                    case BOOLEAN:
+                    case INSTANCE:
+                        throw UNSUPPORTED;
+                    default:
+                        code.invoke(ClassFile.INVOKESTATIC, NUMBERS,
+                            "negate", UNARY_OBJECT);
+                        break;
+                }
+                return type;
+            }
+            default:
+                if (!(expr.right instanceof Expr.Variable)) {
+                    throw UNSUPPORTED;
+                }
+                return step((Expr.Variable)expr.right, expr.operator,
+                    false);
+        }
+    }
+
+    @Override
+    public Integer visitPostfixExpr(Expr.Postfix expr) {
+        if (!(expr.left instanceof Expr.Variable)) throw UNSUPPORTED;
+        return step((Expr.Variable)expr.left, expr.operator, true);
+    }
+
+    // ++ or -- on a local, leaving its old value when postfix and its
+    // new one otherwise.
+    private int step(Expr.Variable variable, Token operator,
+                     boolean postfix) {
+        int slot = localSlot(variable);
+        int type = target.slots[slot];
+        if (type == BOOLEAN || type == INSTANCE) throw UNSUPPORTED;
+        assign(slot);
+
+        boolean up = operator.type == TokenType.PLUS_PLUS;
+        int dup = words(type) == 2 ? ClassFile.DUP2 : ClassFile.DUP;
+        code.local(load(type), locals[slot]);
+        if (postfix) code.op(dup, words(type));
+
+        switch (type) {
+            case LONG:
+                code.pushLong(1);
+                code.invoke(ClassFile.INVOKESTATIC, MATH,
+                    up ? "addExact" : "subtractExact", "(JJ)J");
+                break;
+            case DOUBLE:
+                code.pushDouble(1);
+                code.op(up ? ClassFile.DADD : ClassFile.DSUB, -2);
+                break;
+            default:
+                code.pushLong(up ? 1 : -1);
+                code.invoke(ClassFile.INVOKESTATIC, NUMBERS, "step",
+                    "(Ljava/lang/Object;J)Ljava/lang/Object;");
+                break;
+        }
+
+        if (!postfix) code.op(dup, words(type));
+        code.local(store(type), locals[slot]);
+        return type;
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+        return condition(expr);
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        TokenType operator = expr.operator.type;
+        switch (operator) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                return condition(expr);
+            default:
+                break;
+        }
+
+        int operands = operands(typeOf(expr.left), typeOf(expr.right));
+        boolean bitwise = Numbers.isBitwise(operator);
+        if (bitwise && operands == DOUBLE) operands = NUMBER;
+
+        convert(emit(expr.left), operands);
+        convert(emit(expr.right), operands);
+
+        if (operands == NONE) return NONE;
+        if (operands == NUMBER) {
+            code.pushInt(operator.ordinal());
+            if (bitwise) {
+                code.invoke(ClassFile.INVOKESTATIC, JIT, "bitwise",
+                    "(Ljava/lang/Object;Ljava/lang/Object;I)J");
+                return LONG;
+            }
+            code.invoke(ClassFile.INVOKESTATIC, JIT, "binary",
+                BINARY_OBJECT);
+            return NUMBER;
+        }
+
+        if (operands == DOUBLE) {
+            code.op(doubleOp(operator), -2);
+            return DOUBLE;
+        }
+
+        switch (operator) {
+            case PLUS:
+                exact("addExact");
+                return LONG;
+            case MINUS:
+                exact("subtractExact");
+                return LONG;
+            case STAR:
+                exact("multiplyExact");
+                return LONG;
+            case SLASH:
+                code.invoke(ClassFile.INVOKESTATIC, JIT, "divide",
+                    "(JJ)Ljava/lang/Object;");
+                return NUMBER;
+            case PERCENT:
+                // Throws on a zero divisor, whose result is NaN.
+                code.op(ClassFile.LREM, -2);
+                return LONG;
+            case AMPERSAND:
+                code.op(ClassFile.LAND, -2);
+                return LONG;
+            case PIPE:
+                code.op(ClassFile.LOR, -2);
+                return LONG;
+            case LESS_LESS:
+                code.invoke(ClassFile.INVOKESTATIC, JIT, "shiftLeft",
+                    "(JJ)J");
+                return LONG;
+            default:
+                code.invoke(ClassFile.INVOKESTATIC, JIT, "shiftRight",
+                    "(JJ)J");
+                return LONG;
+        }
+    }
+
+    private void exact(String name) {
+        code.invoke(ClassFile.INVOKESTATIC, MATH, name, "(JJ)J");
+    }
+
+    private static int doubleOp(TokenType operator) {
+        switch (operator) {
+            case PLUS: return ClassFile.DADD;
+            case MINUS: return ClassFile.DSUB;
+            case STAR: return ClassFile.DMUL;
+            case SLASH: return ClassFile.DDIV;
+            default: return ClassFile.DREM;
+        }
+    }
+
+    // What both operands of an arithmetic operator or comparison are
+    // converted to.
+    private static int operands(int left, int right) {
+        if (((left | right) & ~NUMBER) != 0) throw UNSUPPORTED;
+        if (left == NONE || right == NONE) return NONE;
+        if (left == LONG && right == LONG) return LONG;
+        if (left == NUMBER || right == NUMBER) return NUMBER;
+        return DOUBLE;
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+        if (!(expr.callee instanceof Expr.Variable)) throw UNSUPPORTED;
+        Expr.Variable name = (Expr.Variable)expr.callee;
+        if (name.depth != Resolver.GLOBAL) throw UNSUPPORTED;
+
+        Object value = name.global.value;
+        if (!(value instanceof LumeFunction)) throw UNSUPPORTED;
+        LumeFunction function = (LumeFunction)value;
+        if (!isCompilable(function) || function.declaration.isMethod ||
+            function.arity() != expr.arguments.size()) {
+            throw UNSUPPORTED;
+        }
+
+        Target callee = target(function.declaration);
+        constant(code, name.global);
+        constant(code, function.declaration);
+        code.invoke(ClassFile.INVOKESTATIC, JIT, "check",
+            "(Ljava/lang/Object;Ljava/lang/Object;)V");
+
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            int argument = emit(expr.arguments.get(i));
+            convert(argument, widenSlot(callee.slots, i, argument));
+        }
+
+        code.invoke(ClassFile.INVOKESTATIC, className, callee.name,
+            callee.descriptor());
+        return callee.result;
+    }
+
+    private void constant(ClassFile.Code code, Object value) {
+        code.getStatic(className, "K", "[Ljava/lang/Object;");
+        code.pushInt(constant(value));
+        code.op(ClassFile.AALOAD, -1);
+    }
+
+    // A field read, guarded on the one shape the site has seen and on
+    // the type of the value there when it was compiled.
+    @Override
+    public Integer visitGetExpr(Expr.Get expr) {
+        Shape shape = expr.cache.fieldShape();
+        if (shape == null) throw UNSUPPORTED;
+        int slot = expr.cache.fieldSlot();
+
+        Object object = sample(expr.object);
+        if (!(object instanceof LumeInstance) ||
+            ((LumeInstance)object).shape != shape) {
+            throw UNSUPPORTED;
+        }
+        int type = typeOfValue(((LumeInstance)object).values[slot]);
+
+        int instance = emit(expr.object);
+        if (instance != INSTANCE && instance != NONE) throw UNSUPPORTED;
+        constant(code, shape);
+        code.pushInt(slot);
+        code.invoke(ClassFile.INVOKESTATIC, JIT, fieldReader(type),
+            "(Ljava/lang/Object;Ljava/lang/Object;I)" + descriptor(type));
+        return type;
+    }
+
+    private static String fieldReader(int type) {
+        switch (type) {
+            case LONG: return "longField";
+            case DOUBLE: return "doubleField";
+            case BOOLEAN: return "booleanField";
+            default: return "instanceField";
+        }
+    }
+
+    // The value an expression had when compiling started, where that can
+    // be known: a parameter of the function or a value from before the
+    // loop, and the fields of those. Field reads speculate on its type.
+    private Object sample(Expr expr) {
+        if (target != targets.get(0)) return null;
+
+        if (expr instanceof Expr.This) {
+            Expr.This self = (Expr.This)expr;
+            if (self.depth != 0) return null;
+            return sample(self.slot);
+        }
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable)expr;
+            if (variable.depth == Resolver.GLOBAL) {
+                return target.declaration == null ?
+                    variable.global.value : null;
+            }
+            if (variable.depth != 0 || variable.boxed) return null;
+            return sample(variable.slot);
+        }
+        if (expr instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr;
+            Object object = sample(get.object);
+            Shape shape = get.cache.fieldShape();
+            if (!(object instanceof LumeInstance) || shape == null ||
+                ((LumeInstance)object).shape != shape) {
+                return null;
+            }
+            return ((LumeInstance)object).values[get.cache.fieldSlot()];
+        }
+        return null;
+    }
+
+    private Object sample(int slot) {
+        if (target.declaration == null) {
+            return declared.get(slot) ? null : frame[slot];
+        }
+        return slot < parameterSlots(target.declaration) ?
+            frame[slot] : null;
+    }
+
+    @Override
+    public Integer visitSetExpr(Expr.Set expr) {
+        throw UNSUPPORTED;
+    }
+
+    @Override
+    public Integer visitUpdateExpr(Expr.Update expr) {
+        throw UNSUPPORTED;
+    }
+
+    @Override
+    public Integer visitThisExpr(Expr.This expr) {
+        int slot = slot(expr.depth, expr.slot, false, null);
+        int type = target.slots[slot];
+        code.local(load(type), locals[slot]);
+        return type;
+    }
+
+    @Override
+    public Integer visitSuperExpr(Expr.Super expr) {
+        throw UNSUPPORTED;
+    }
+
+    // A boolean-valued expression as 0 or 1 on the stack.
+    private int condition(Expr expr) {
+        ClassFile.Label no = new ClassFile.Label();
+        ClassFile.Label end = new ClassFile.Label();
+        jump(expr, false, no);
+        code.pushInt(1);
+        code.jump(ClassFile.GOTO, end);
+        code.place(no);
+        code.pushInt(0);
+        code.place(end);
+        return BOOLEAN;
+    }
+
+    // Jumps to the label if the condition's truth is when, and falls
+    // through otherwise. Only booleans are allowed as conditions.
+    private void jump(Expr expr, boolean when, ClassFile.Label label) {
+        if (expr instanceof Expr.Grouping) {
+            jump(((Expr.Grouping)expr).expression, when, label);
+        } else if (expr instanceof Expr.Literal &&
+                   ((Expr.Literal)expr).value instanceof Boolean) {
+            if ((boolean)((Expr.Literal)expr).value == when) {
+                code.jump(ClassFile.GOTO, label);
+            }
+        } else if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            boolean or = logical.operator.type == TokenType.OR;
+            if (or == when) {
+                jump(logical.left, when, label);
+            } else {
+                ClassFile.Label skip = new ClassFile.Label();
+                jump(logical.left, !when, skip);
+                jump(logical.right, when, label);
+                code.place(skip);
+                record(expr, BOOLEAN);
+                return;
+            }
+            jump(logical.right, when, label);
+        } else if (expr instanceof Expr.Unary &&
+                   ((Expr.Unary)expr).operator.type == TokenType.BANG) {
+            jump(((Expr.Unary)expr).right, !when, label);
+        } else if (expr instanceof Expr.Binary &&
+                   isComparison(((Expr.Binary)expr).operator.type)) {
+            compare((Expr.Binary)expr, when, label);
+        } else {
+            int type = emit(expr);
+            if (type != BOOLEAN && type != NONE) throw UNSUPPORTED;
+            code.jump(when ? ClassFile.IFNE : ClassFile.IFEQ, label);
+            return;
+        }
+
+        record(expr, BOOLEAN);
+    }
+
+    private static boolean isComparison(TokenType operator) {
+        switch (operator) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void compare(Expr.Binary expr, boolean when,
+                         ClassFile.Label label) {
+        TokenType operator = expr.operator.type;
+        boolean equality = operator == TokenType.EQUAL_EQUAL ||
+            operator == TokenType.BANG_EQUAL;
+        int left = typeOf(expr.left);
+        int right = typeOf(expr.right);
+
+        if (equality && (left == BOOLEAN || right == BOOLEAN)) {
+            int type = join(left, right);
+            if (type != BOOLEAN && type != NONE) {
+                // A boolean never equals a number.
+                pop(emit(expr.left));
+                pop(emit(expr.right));
+                if ((operator == TokenType.BANG_EQUAL) == when) {
+                    code.jump(ClassFile.GOTO, label);
+                }
+                return;
+            }
+
+            emit(expr.left);
+            emit(expr.right);
+            code.jump(branch(operator, when, ClassFile.IF_ICMPEQ,
+                ClassFile.IF_ICMPNE), label);
+            return;
+        }
+
+        if (equality && left != right && operands(left, right) == DOUBLE) {
+            // A long and a double: equal only when exactly the same value.
+            emit(expr.left);
+            emit(expr.right);
+            code.invoke(ClassFile.INVOKESTATIC, JIT, "equal",
+                "(" + descriptor(left) + descriptor(right) + ")Z");
+            code.jump(branch(operator, when, ClassFile.IFNE,
+                ClassFile.IFEQ), label);
+            return;
+        }
+
+        int operands = operands(left, right);
+        convert(emit(expr.left), operands);
+        convert(emit(expr.right), operands);
+
+        switch (operands) {
+            case LONG:
+                code.op(ClassFile.LCMP, -3);
+                break;
+            case DOUBLE:
+                if (equality) {
+                    code.invoke(ClassFile.INVOKESTATIC, JIT, "equal",
+                        "(DD)Z");
+                    code.jump(branch(operator, when, ClassFile.IFNE,
+                        ClassFile.IFEQ), label);
+                    return;
+                }
+                // NaN compares false: make it fail whichever test is used.
+                boolean greater = operator == TokenType.GREATER ||
+                    operator == TokenType.GREATER_EQUAL;
+                code.op(greater ? ClassFile.DCMPL : ClassFile.DCMPG, -3);
+                break;
+            default:
+                if (equality) {
+                    code.invoke(ClassFile.INVOKESTATIC,
+                        "lumeProject/lume/Interpreter", "isEqual",
+                        "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+                    code.jump(branch(operator, when, ClassFile.IFNE,
+                        ClassFile.IFEQ), label);
+                    return;
+                }
+                code.pushInt(operator.ordinal());
+                code.invoke(ClassFile.INVOKESTATIC, JIT, "test",
+                    "(Ljava/lang/Object;Ljava/lang/Object;I)Z");
+                code.jump(when ? ClassFile.IFNE : ClassFile.IFEQ, label);
+                return;
+        }
+
+        code.jump(signBranch(operator, when), label);
+    }
+
+    // The jump for an equality test whose "equal" outcome is taken by
+    // ifEqual and whose other outcome by ifNotEqual.
+    private static int branch(TokenType operator, boolean when,
+                              int ifEqual, int ifNotEqual) {
+        boolean equal = (operator == TokenType.EQUAL_EQUAL) == when;
+        return equal ? ifEqual : ifNotEqual;
+    }
+
+    // The jump on the -1, 0 or 1 of LCMP, DCMPL or DCMPG.
+    private static int signBranch(TokenType operator, boolean when) {
+        switch (operator) {
+            case GREATER: return when ? ClassFile.IFGT : ClassFile.IFLE;
+            case GREATER_EQUAL: return when ? ClassFile.IFGE : ClassFile.IFLT;
+            case LESS: return when ? ClassFile.IFLT : ClassFile.IFGE;
+            case LESS_EQUAL: return when ? ClassFile.IFLE : ClassFile.IFGT;
+            case EQUAL_EQUAL: return when ? ClassFile.IFEQ : ClassFile.IFNE;
+            default: return when ? ClassFile.IFNE : ClassFile.IFEQ;
+        }
+    }
+
+    private void pop(int type) {
+        code.op(words(type) == 2 ? ClassFile.POP2 : ClassFile.POP,
+            -words(type));
+    }
+
+    // Widens a value to the type a variable, parameter or operator needs.
+    private void convert(int from, int to) {
+        if (from == to || from == NONE) return;
+        if (to == NUMBER) {
+            box(code, from);
+        } else if (to == DOUBLE && from == LONG) {
+            code.op(ClassFile.L2D, 0);
+        }
+    }
+
+    private static void box(ClassFile.Code code, int type) {
+        switch (type) {
+            case LONG:
+                code.invoke(ClassFile.INVOKESTATIC, "java/lang/Long",
+                    "valueOf", "(J)Ljava/lang/Long;");
+                break;
+            case DOUBLE:
+                code.invoke(ClassFile.INVOKESTATIC, "java/lang/Double",
+                    "valueOf", "(D)Ljava/lang/Double;");
+                break;
+            case BOOLEAN:
+                code.invoke(ClassFile.INVOKESTATIC, "java/lang/Boolean",
+                    "valueOf", "(Z)Ljava/lang/Boolean;");
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void unbox(ClassFile.Code code, int type) {
+        String boxClass = boxClass(type);
+        code.type(ClassFile.CHECKCAST, boxClass);
+        switch (type) {
+            case LONG:
+                code.invoke(ClassFile.INVOKEVIRTUAL, boxClass, "longValue",
+                    "()J");
+                break;
+            case DOUBLE:
+                code.invoke(ClassFile.INVOKEVIRTUAL, boxClass,
+                    "doubleValue", "()D");
+                break;
+            default:
+                code.invoke(ClassFile.INVOKEVIRTUAL, boxClass,
+                    "booleanValue", "()Z");
+                break;
+        }
+    }
+
+    private static String boxClass(int type) {
+        switch (type) {
+            case LONG: return "java/lang/Long";
+            case DOUBLE: return "java/lang/Double";
+            case INSTANCE: return "lumeProject/lume/LumeInstance";
+            default: return "java/lang/Boolean";
+        }
+    }
+
+    private static String descriptor(int type) {
+        switch (type) {
+            case LONG: return "J";
+            case DOUBLE: return "D";
+            case BOOLEAN: return "Z";
+            default: return "Ljava/lang/Object;";
+        }
+    }
+
+    private static int words(int type) {
+        return (type == LONG || type == DOUBLE) ? 2 : 1;
+    }
+
+    private static int load(int type) {
+        switch (type) {
+            case LONG: return ClassFile.LLOAD;
+            case DOUBLE: return ClassFile.DLOAD;
+            case BOOLEAN: return ClassFile.ILOAD;
+            default: return ClassFile.ALOAD;
+        }
+    }
+
+    private static int store(int type) {
+        switch (type) {
+            case LONG: return ClassFile.LSTORE;
+            case DOUBLE: return ClassFile.DSTORE;
+            case BOOLEAN: return ClassFile.ISTORE;
+            default: return ClassFile.ASTORE;
+        }
+    }
+
+    private static int returnOp(int type) {
+        switch (type) {
+            case LONG: return ClassFile.LRETURN;
+            case DOUBLE: return ClassFile.DRETURN;
+            case BOOLEAN: return ClassFile.IRETURN;
+            default: return ClassFile.ARETURN;
+        }
+    }
+}
@@ -6,17 +6,39 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 public class Lume {
     private static final Interpreter interpreter = new Interpreter();
+    // The tree walker, unless --vm or --closures picks another backend.
+    private static Backend backend = interpreter;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
     
     public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--compile")) {
+            if (args.length < 2 || args.length > 3 ||
+                !args[1].endsWith(".lume")) {
+                System.out.println(
+                    "Usage: lume --compile script.lume [out.jar]");
+                System.exit(64);
+            }
+            compileFile(args[1], (args.length == 3) ? args[2]
+                : args[1].substring(0, args[1].length() - 5) + ".jar");
+            return;
+        }
+
+        int options = 0;
+        while (options < args.length && args[options].startsWith("--")) {
+            if (!option(args[options])) usage();
+            options++;
+        }
+        args = Arrays.copyOfRange(args, options, args.length);
+
         if (args.length > 1) {
-            System.out.println("Usage: lume [script.lume]");
-            System.exit(64);
+            usage();
         } else if (args.length == 1) {
             if (!args[0].endsWith(".lume")) {
                 System.err.println("Error: Lume interpreter only accepts .lume files");
@@ -28,6 +50,42 @@ public class Lume {
         }
     }
 
+    // The JIT thresholds count calls and back edges; zero turns it off.
+    private static boolean option(String option) {
+        if (option.equals("--vm")) {
+            backend = new VM(interpreter);
+        } else if (option.equals("--closures")) {
+            backend = new ClosureCompiler(interpreter);
+        } else if (option.equals("--trace-jit")) {
+            Jit.trace = true;
+        } else if (option.startsWith("--jit-calls=")) {
+            Jit.callThreshold = count(option);
+            return Jit.callThreshold >= 0;
+        } else if (option.startsWith("--jit-loops=")) {
+            Jit.loopThreshold = count(option);
+            return Jit.loopThreshold >= 0;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    // The N of an option ending in =N, or -1 when it isn't a number.
+    private static int count(String option) {
+        try {
+            return Integer.parseInt(option.substring(option.indexOf('=') + 1));
+        } catch (NumberFormatException error) {
+            return -1;
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: lume [--vm | --closures] [--jit-calls=N]" +
+            " [--jit-loops=N] [--trace-jit] [script.lume]" +
+            "\n       lume --compile script.lume [out.jar]");
+        System.exit(64);
+    }
+
     private static void runFile(String path) throws IOException {
         // Double-check the extension (in case method is called directly)
         if (!path.endsWith(".lume")) {
@@ -42,6 +100,30 @@ public class Lume {
         if (hadRuntimeError) System.exit(70);
     }
 
+    // Writes the script, compiled by AotCompiler, to a jar that runs it
+    // with java -cp and the main class named after it.
+    private static void compileFile(String path, String jar)
+            throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(path));
+        Scanner scanner = new Scanner(new String(bytes,
+            Charset.defaultCharset()));
+        Parser parser = new Parser(scanner.scanTokens());
+        List<Stmt> statements = parser.parse();
+        if (hadError) System.exit(65);
+
+        new Resolver(interpreter).resolve(statements);
+        if (hadError) System.exit(65);
+
+        try {
+            Map<String, byte[]> classes = AotCompiler.compile(statements,
+                interpreter.topLevelFrameSize, path);
+            AotCompiler.write(classes, path, Paths.get(jar));
+        } catch (IllegalStateException error) {
+            System.err.println("Error: " + error.getMessage());
+            System.exit(65);
+        }
+    }
+
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
@@ -70,7 +152,7 @@ public class Lume {
     
         if (hadError) return;
 
-        interpreter.interpret(statements);
+        backend.interpret(statements);
         System.out.println("");
     }
 
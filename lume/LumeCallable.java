@@ -1,8 +1,28 @@
 package lumeProject.lume;
 
-import java.util.List;
-
 interface LumeCallable {
+    // Shared by every call without arguments; callees only read it.
+    Object[] NO_ARGUMENTS = new Object[0];
+
     int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    // Calls with up to three arguments come in through these, so callees
+    // that override them never see an argument array.
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, NO_ARGUMENTS);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, new Object[] { a });
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[] { a, b });
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b,
+                         Object c) {
+        return call(interpreter, new Object[] { a, b, c });
+    }
 }
@@ -1,39 +1,57 @@
 package lumeProject.lume;
 
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 class LumeClass implements LumeCallable {
     final String name;
     final LumeClass superclass;
-    private final Map<String, LumeFunction> methods;
+    // Holds the inherited methods too, so lookup never walks the chain.
+    final Map<String, LumeFunction> methods;
+    final LumeFunction initializer;
+    private final int arity;
+    final Shape shape = new Shape();
+    // The fields a new instance starts with room for: those assigned
+    // through 'this' in its own init and those its superclass expects,
+    // each once, since a subclass's init often sets inherited ones too.
+    final Set<String> fieldNames;
+    final int fieldCapacity;
 
     LumeClass(String name, LumeClass superclass, 
-    Map<String, LumeFunction> methods) {
+    Map<String, LumeFunction> methods, List<String> fieldNames) {
         this.superclass = superclass;
         this.name = name;
         this.methods = methods;
+        this.initializer = methods.get("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
+        this.fieldNames = new HashSet<>(fieldNames);
+        if (superclass != null) this.fieldNames.addAll(superclass.fieldNames);
+        this.fieldCapacity = this.fieldNames.size();
     }
 
     LumeFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
+        return methods.get(name);
+    }
 
-        if (superclass != null) {
-            return superclass.findMethod(name);
+    // The method for each name, or null where there is none.
+    LumeFunction[] findMethods(List<String> names) {
+        LumeFunction[] found = new LumeFunction[names.size()];
+        for (int i = 0; i < found.length; i++) {
+            found[i] = findMethod(names.get(i));
         }
-    
-        return null;
+
+        return found;
     }
 
     @Override
-    public Object call(Interpreter interpreter,
-                       List<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
         LumeInstance instance = new LumeInstance(this);
-        LumeFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            Object[] frame = initializer.newFrame(instance);
+            System.arraycopy(arguments, 0, frame, 1, arguments.length);
+            initializer.invoke(interpreter, frame);
         }
 
         return instance;
@@ -41,13 +59,11 @@ class LumeClass implements LumeCallable {
 
     @Override
     public int arity() {
-        LumeFunction initializer = findMethod("init");
-        if (initializer == null) return 0;
-        return initializer.arity();
+        return arity;
     }
 
     @Override
     public String toString() {
         return name;
     }
-}
\ No newline at end of file
+}
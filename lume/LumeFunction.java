@@ -1,46 +1,131 @@
 package lumeProject.lume;
 
-import java.util.List;
-
 class LumeFunction implements LumeCallable {
-    private final Environment closure;
-    private final Stmt.Function declaration;
-    private final boolean isInitializer;
+    final Object[] captures;
+    final Stmt.Function declaration;
+    final boolean isInitializer;
+    final LumeInstance receiver;
+    // The compiled body when the VM created the function, else null.
+    final Chunk chunk;
+    // The body as closures when the ClosureCompiler created the function,
+    // or as the CODE of its class when AotCompiler compiled it; else null.
+    final ClosureCompiler.Code code;
 
-    LumeFunction(Stmt.Function declaration, Environment closure,
+    LumeFunction(Stmt.Function declaration, Object[] captures,
                     boolean isInitializer) {
+        this(declaration, captures, isInitializer, null, null, null);
+    }
+
+    LumeFunction(Chunk chunk, Object[] captures) {
+        this(chunk.function, captures, chunk.isInitializer, null, chunk,
+            null);
+    }
+
+    LumeFunction(Stmt.Function declaration, Object[] captures,
+                    boolean isInitializer, ClosureCompiler.Code code) {
+        this(declaration, captures, isInitializer, null, null, code);
+    }
+
+    private LumeFunction(Stmt.Function declaration, Object[] captures,
+                    boolean isInitializer, LumeInstance receiver,
+                    Chunk chunk, ClosureCompiler.Code code) {
         this.isInitializer = isInitializer;
-        this.closure = closure;
+        this.captures = captures;
         this.declaration = declaration;
+        this.receiver = receiver;
+        this.chunk = chunk;
+        this.code = code;
     }
 
     LumeFunction bind(LumeInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LumeFunction(declaration, environment, 
-            isInitializer);
+        return new LumeFunction(declaration, captures, isInitializer,
+            instance, chunk, code);
     }
 
-    @Override
-    public Object call(Interpreter interpreter,
-                       List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                arguments.get(i));
+    // A frame holds a method's receiver in slot 0, then the parameters,
+    // then the locals of the body.
+    Object[] newFrame() {
+        return newFrame(receiver);
+    }
+
+    Object[] newFrame(LumeInstance receiver) {
+        Object[] frame = new Object[declaration.frameSize];
+        if (declaration.isMethod) frame[0] = receiver;
+        return frame;
+    }
+
+    int firstParameterSlot() {
+        return declaration.isMethod ? 1 : 0;
+    }
+
+    Object invoke(Interpreter interpreter, Object[] frame) {
+        if (declaration.compiled != null) {
+            Object value = Jit.run(declaration, frame);
+            if (value != Jit.FALLBACK) return value;
+        } else if (Jit.callThreshold > 0 &&
+                   declaration.invocations < Jit.callThreshold &&
+                   ++declaration.invocations == Jit.callThreshold) {
+            // Counting stops here, whether or not this compiles, until
+            // the code deopts.
+            Jit.compile(this, frame);
         }
-  
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
 
-            return returnValue.value;
+        boolean[] boxedParams = declaration.boxedParams;
+        if (boxedParams != null) {
+            int slot = firstParameterSlot();
+            for (int i = 0; i < boxedParams.length; i++) {
+                if (boxedParams[i]) {
+                    frame[slot + i] = new Box(frame[slot + i]);
+                }
+            }
         }
 
-        if (isInitializer) return closure.getAt(0, "this");
+        Object value = (code != null) ? code.run(frame, captures)
+            : interpreter.executeFunction(declaration.body, frame, captures);
+        if (isInitializer) return frame[0];
 
-        return null;
+        return value;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        Object[] frame = newFrame();
+        System.arraycopy(arguments, 0, frame, firstParameterSlot(),
+            arguments.length);
+        return invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return invoke(interpreter, newFrame());
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Object[] frame = newFrame();
+        int slot = firstParameterSlot();
+        frame[slot] = a;
+        return invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Object[] frame = newFrame();
+        int slot = firstParameterSlot();
+        frame[slot] = a;
+        frame[slot + 1] = b;
+        return invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b,
+                        Object c) {
+        Object[] frame = newFrame();
+        int slot = firstParameterSlot();
+        frame[slot] = a;
+        frame[slot + 1] = b;
+        frame[slot + 2] = c;
+        return invoke(interpreter, frame);
     }
 
     @Override
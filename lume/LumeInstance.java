@@ -1,25 +1,45 @@
 package lumeProject.lume;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LumeInstance {
-    private LumeClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    final LumeClass klass;
+    Shape shape;
+    Object[] values;
 
     LumeInstance(LumeClass klass) {
         this.klass = klass;
+        this.shape = klass.shape;
+        this.values = klass.fieldCapacity == 0 ? NO_FIELDS
+            : new Object[klass.fieldCapacity];
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int slot = shape.slotOf(name.lexeme);
+        if (slot == -1) {
+            slot = shape.size();
+            extend(shape.with(name.lexeme));
+        }
+
+        values[slot] = value;
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    // Moves to a shape with one more field, making room for it.
+    void extend(Shape next) {
+        int size = shape.size();
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size + (size >> 1) + 1);
         }
 
+        shape = next;
+    }
+
+    Object get(Token name) {
+        int slot = shape.slotOf(name.lexeme);
+        if (slot != -1) return values[slot];
+
         LumeFunction method = klass.findMethod(name.lexeme);
         if (method != null) return method.bind(this);
     
@@ -31,4 +51,4 @@ class LumeInstance {
     public String toString() {
         return klass.name + " instance";
     }
-}
\ No newline at end of file
+}
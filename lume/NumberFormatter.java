@@ -0,0 +1,181 @@
+package lumeProject.lume;
+
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+// Turns numbers into the text print and string concatenation show.
+// Integers, and doubles with an integral value below 10^7, come out as
+// plain digits; small ones are cached, since counters and indexes make
+// up most printed numbers. Other doubles get the fewest significant
+// digits that still read back as the same double, laid out the way
+// Double.toString does.
+final class NumberFormatter {
+    private NumberFormatter() {}
+
+    private static final int CACHED = 1024;
+    private static final String[] SMALL = new String[CACHED];
+    // Holds the longest text a number can have.
+    private static final byte[] BUFFER = new byte[32];
+
+    static String format(Object number) {
+        if (number instanceof Long) return format((long)number);
+        return format((double)number);
+    }
+
+    // Writes the text as bytes straight into the stream's buffer, without
+    // building a String for integers.
+    static void print(PrintStream out, Object number) {
+        if (number instanceof Long) {
+            printDigits(out, (long)number);
+            return;
+        }
+
+        double value = (double)number;
+        if (Math.abs(value) < 1e7 && value == (long)value &&
+            (value != 0 || 1 / value > 0)) {
+            printDigits(out, (long)value);
+            return;
+        }
+
+        String text = format(value);
+        for (int i = 0; i < text.length(); i++) {
+            BUFFER[i] = (byte)text.charAt(i);
+        }
+        out.write(BUFFER, 0, text.length());
+    }
+
+    private static void printDigits(PrintStream out, long value) {
+        if (value == Long.MIN_VALUE) {
+            out.print(Long.toString(value));
+            return;
+        }
+
+        boolean negative = value < 0;
+        if (negative) value = -value;
+
+        int start = BUFFER.length;
+        do {
+            BUFFER[--start] = (byte)('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        if (negative) BUFFER[--start] = '-';
+        out.write(BUFFER, start, BUFFER.length - start);
+    }
+
+    static String format(long value) {
+        if (value >= 0 && value < CACHED) {
+            String text = SMALL[(int)value];
+            if (text == null) {
+                text = Long.toString(value);
+                SMALL[(int)value] = text;
+            }
+            return text;
+        }
+
+        return Long.toString(value);
+    }
+
+    static String format(double value) {
+        if (Math.abs(value) < 1e7 && value == (long)value) {
+            if (value == 0 && 1 / value < 0) return "-0";
+            return format((long)value);
+        }
+
+        // Two decimals of at most 15 significant digits never read back as
+        // the same double, so a result that short is already the shortest.
+        String text = trimZeros(Double.toString(value));
+        if (Double.isNaN(value) || Double.isInfinite(value) ||
+            significantDigits(text) <= 15) {
+            return text;
+        }
+
+        return layOut(shortest(value), value < 0);
+    }
+
+    // Double.toString sometimes pads the fraction, as in 0.0020.
+    private static String trimZeros(String text) {
+        int end = text.indexOf('E');
+        if (end == -1) end = text.length();
+
+        int last = end - 1;
+        while (text.charAt(last) == '0' && text.charAt(last - 1) != '.') {
+            last--;
+        }
+
+        if (last == end - 1) return text;
+        return text.substring(0, last + 1) + text.substring(end);
+    }
+
+    private static int significantDigits(String text) {
+        int count = 0;
+        boolean leading = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == 'E') break;
+            if (c < '0' || c > '9') continue;
+            if (leading && c == '0') continue;
+            leading = false;
+            count++;
+        }
+
+        return count;
+    }
+
+    // Double.toString always reads back as the same double, but can
+    // carry more digits than needed. Rounding the exact value to fewer
+    // digits finds the shortest decimal that still does.
+    private static BigDecimal shortest(double value) {
+        BigDecimal exact = new BigDecimal(value).abs();
+        BigDecimal best = new BigDecimal(Double.toString(Math.abs(value)));
+        for (int digits = best.stripTrailingZeros().precision() - 1;
+             digits > 0; digits--) {
+            BigDecimal candidate = exact.round(
+                new MathContext(digits, RoundingMode.HALF_EVEN));
+            if (candidate.doubleValue() != Math.abs(value)) break;
+            best = candidate;
+        }
+
+        return best.stripTrailingZeros();
+    }
+
+    // Plain notation between 10^-3 and 10^7, scientific outside it, as
+    // Double.toString writes them.
+    private static String layOut(BigDecimal decimal, boolean negative) {
+        String digits = decimal.unscaledValue().toString();
+        // The value is 0.digits * 10^exponent.
+        int exponent = digits.length() - decimal.scale();
+
+        StringBuilder text = new StringBuilder(digits.length() + 8);
+        if (negative) text.append('-');
+
+        if (exponent > -3 && exponent <= 7) {
+            if (exponent <= 0) {
+                text.append("0.");
+                for (int i = exponent; i < 0; i++) text.append('0');
+                text.append(digits);
+            } else if (exponent >= digits.length()) {
+                text.append(digits);
+                for (int i = digits.length(); i < exponent; i++) {
+                    text.append('0');
+                }
+                text.append(".0");
+            } else {
+                text.append(digits, 0, exponent).append('.')
+                    .append(digits, exponent, digits.length());
+            }
+        } else {
+            text.append(digits.charAt(0)).append('.');
+            if (digits.length() > 1) {
+                text.append(digits, 1, digits.length());
+            } else {
+                text.append('0');
+            }
+            text.append('E').append(exponent - 1);
+        }
+
+        return text.toString();
+    }
+}
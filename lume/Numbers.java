@@ -0,0 +1,218 @@
+package lumeProject.lume;
+
+// Arithmetic on Lume numbers. A number is a Long while it holds an exact
+// integer and a Double otherwise: integer operations whose result would
+// overflow or, for division, not come out even produce a Double instead.
+// The bitwise operators take integers, including doubles with an
+// integral value, and produce one, except for a left shift that would
+// lose bits, which produces a Double like the other operators. A shift
+// count must be from 0 to 63.
+final class Numbers {
+    private Numbers() {}
+
+    static boolean isNumber(Object value) {
+        return value instanceof Long || value instanceof Double;
+    }
+
+    static double toDouble(Object number) {
+        if (number instanceof Long) return (long)number;
+        return (double)number;
+    }
+
+    static boolean isBitwise(TokenType type) {
+        switch (type) {
+            case AMPERSAND:
+            case PIPE:
+            case LESS_LESS:
+            case GREATER_GREATER:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Whether +, -, *, / or % on two integers has an integer result.
+    static boolean isExact(TokenType type, long a, long b) {
+        switch (type) {
+            case PLUS: return addIsExact(a, b);
+            case MINUS: return subtractIsExact(a, b);
+            case STAR: return multiplyIsExact(a, b);
+            case SLASH: return divideIsExact(a, b);
+            case PERCENT: return b != 0;
+            default: return false;
+        }
+    }
+
+    static boolean addIsExact(long a, long b) {
+        long result = a + b;
+        return ((a ^ result) & (b ^ result)) >= 0;
+    }
+
+    static boolean subtractIsExact(long a, long b) {
+        long result = a - b;
+        return ((a ^ b) & (a ^ result)) >= 0;
+    }
+
+    // The same test Math.multiplyExact makes: small factors can't
+    // overflow, and only large ones pay for the division.
+    static boolean multiplyIsExact(long a, long b) {
+        if (((Math.abs(a) | Math.abs(b)) >>> 31) == 0) return true;
+        long result = a * b;
+        return (b == 0 || result / b == a) &&
+            (a != Long.MIN_VALUE || b != -1);
+    }
+
+    static boolean divideIsExact(long a, long b) {
+        return b != 0 && a % b == 0 && (a != Long.MIN_VALUE || b != -1);
+    }
+
+    static long integer(TokenType type, long a, long b) {
+        switch (type) {
+            case PLUS: return a + b;
+            case MINUS: return a - b;
+            case STAR: return a * b;
+            case SLASH: return a / b;
+            default: return a % b;
+        }
+    }
+
+    static double real(TokenType type, double a, double b) {
+        switch (type) {
+            case PLUS: return a + b;
+            case MINUS: return a - b;
+            case STAR: return a * b;
+            case SLASH: return a / b;
+            default: return a % b;
+        }
+    }
+
+    static boolean shiftLeftIsExact(long a, long b) {
+        return ((a << b) >> b) == a;
+    }
+
+    static double shiftLeft(long a, long b) {
+        return Math.scalb((double)a, (int)b);
+    }
+
+    static void checkShift(Token operator, long count) {
+        if (count < 0 || count > 63) {
+            throw new RuntimeError(operator,
+                "Shift count must be between 0 and 63.");
+        }
+    }
+
+    // For a shift, after checkShift, and for a left shift, only when
+    // shiftLeftIsExact.
+    static long bitwise(TokenType type, long a, long b) {
+        switch (type) {
+            case AMPERSAND: return a & b;
+            case PIPE: return a | b;
+            case LESS_LESS: return a << b;
+            default: return a >> b;
+        }
+    }
+
+    static long toInteger(Token operator, double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 0x1p63) {
+            return (long)value;
+        }
+
+        throw new RuntimeError(operator, "Operands must be integers.");
+    }
+
+    static long toInteger(Token operator, Object number) {
+        if (number instanceof Long) return (long)number;
+        return toInteger(operator, (double)number);
+    }
+
+    static boolean compare(TokenType type, double a, double b) {
+        switch (type) {
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            default: return a <= b;
+        }
+    }
+
+    static boolean compare(TokenType type, long a, long b) {
+        switch (type) {
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            default: return a <= b;
+        }
+    }
+
+    // Any arithmetic, bitwise or comparison operator but + on strings.
+    static Object binary(Token operator, Object left, Object right) {
+        if (!isNumber(left) || !isNumber(right)) {
+            throw new RuntimeError(operator, "Operands must be numbers.");
+        }
+
+        TokenType type = operator.type;
+        if (isBitwise(type)) {
+            long a = toInteger(operator, left);
+            long b = toInteger(operator, right);
+            if (type == TokenType.LESS_LESS ||
+                type == TokenType.GREATER_GREATER) {
+                checkShift(operator, b);
+            }
+            if (type == TokenType.LESS_LESS && !shiftLeftIsExact(a, b)) {
+                return shiftLeft(a, b);
+            }
+            return bitwise(type, a, b);
+        }
+
+        if (left instanceof Long && right instanceof Long) {
+            long a = (long)left;
+            long b = (long)right;
+            switch (type) {
+                case GREATER:
+                case GREATER_EQUAL:
+                case LESS:
+                case LESS_EQUAL:
+                    return compare(type, a, b);
+                default:
+                    if (isExact(type, a, b)) return integer(type, a, b);
+                    return real(type, a, b);
+            }
+        }
+
+        switch (type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return compare(type, toDouble(left), toDouble(right));
+            default:
+                return real(type, toDouble(left), toDouble(right));
+        }
+    }
+
+    static Object negate(Object number) {
+        if (number instanceof Long) {
+            long value = (long)number;
+            if (value != Long.MIN_VALUE) return -value;
+            return -(double)value;
+        }
+
+        return -(double)number;
+    }
+
+    // What ++ (step 1) and -- (step -1) store.
+    static Object step(Object number, long step) {
+        if (number instanceof Long) {
+            long value = (long)number;
+            if (addIsExact(value, step)) return value + step;
+            return (double)value + step;
+        }
+
+        return (double)number + step;
+    }
+
+    // Whether an integer and a double hold the same value.
+    static boolean equal(long integer, double real) {
+        return real == (double)integer && real != 0x1p63 &&
+            (long)real == integer;
+    }
+}
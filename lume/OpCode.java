@@ -0,0 +1,83 @@
+package lumeProject.lume;
+
+// The instructions the Compiler emits and the VM runs. Each is one byte,
+// followed by its operands: slots, capture indexes and constant indexes
+// take two bytes, argument counts one and jump offsets four. The comment
+// on each gives its operands and what it does to the stack.
+final class OpCode {
+    private OpCode() {}
+
+    static final byte CONSTANT = 0;          // constant: -> value
+    static final byte NIL = 1;               // -> nil
+    static final byte TRUE = 2;              // -> true
+    static final byte FALSE = 3;             // -> false
+    static final byte POP = 4;               // value ->
+    static final byte DUP = 5;               // value -> value value
+
+    static final byte GET_LOCAL = 6;         // slot: -> value
+    static final byte GET_LOCAL_BOXED = 7;   // slot: -> value
+    static final byte SET_LOCAL = 8;         // slot: value -> value
+    static final byte SET_LOCAL_BOXED = 9;   // slot: value -> value
+    static final byte STORE_LOCAL = 10;      // slot: value ->
+    static final byte STORE_LOCAL_BOXED = 11; // slot: value ->
+    static final byte NEW_BOX = 12;          // slot: ->
+    static final byte GET_CAPTURE = 13;      // index: -> value
+    static final byte GET_CAPTURE_BOXED = 14; // index: -> value
+    static final byte SET_CAPTURE_BOXED = 15; // index: value -> value
+    static final byte GET_GLOBAL = 16;       // cell: -> value
+    static final byte SET_GLOBAL = 17;       // cell: value -> value
+    static final byte DEFINE_GLOBAL = 18;    // name: value ->
+
+    static final byte GET_PROPERTY = 19;     // Get: object -> value
+    static final byte CHECK_INSTANCE = 20;   // Set: object -> object
+    static final byte SET_PROPERTY = 21;     // Set: object value -> value
+    static final byte UPDATE_READ = 22;      // Update: object -> object old
+    static final byte UPDATE_WRITE = 23;     // Update: object old [value] -> result
+
+    static final byte ADD = 24;              // a b -> a + b
+    static final byte SUBTRACT = 25;
+    static final byte MULTIPLY = 26;
+    static final byte DIVIDE = 27;
+    static final byte MODULO = 28;
+    static final byte BIT_AND = 29;
+    static final byte BIT_OR = 30;
+    static final byte SHIFT_LEFT = 31;
+    static final byte SHIFT_RIGHT = 32;
+    static final byte GREATER = 33;
+    static final byte GREATER_EQUAL = 34;
+    static final byte LESS = 35;
+    static final byte LESS_EQUAL = 36;
+    static final byte EQUAL = 37;
+    static final byte NOT_EQUAL = 38;
+    static final byte NEGATE = 39;           // a -> -a
+    static final byte NOT = 40;              // a -> !a
+    static final byte INCREMENT = 41;        // a -> a + 1
+    static final byte DECREMENT = 42;        // a -> a - 1
+
+    static final byte JUMP = 43;             // offset:
+    static final byte JUMP_IF_FALSE = 44;    // offset: condition ->
+    static final byte AND = 45;              // offset: a -> a, or jumps with a
+    static final byte OR = 46;               // offset: a -> a, or jumps with a
+
+    static final byte CALL = 47;             // count: callee args -> result
+    static final byte INVOKE_PREP = 48;      // Get: object -> callee receiver
+    static final byte INVOKE = 49;           // count: callee receiver args -> result
+    static final byte SUPER_PREP = 50;       // Super: table this -> method this
+    static final byte SUPER_GET = 51;        // Super: table this -> bound method
+    static final byte CLOSURE = 52;          // chunk: -> function
+    static final byte CHECK_SUPERCLASS = 53; // Class: superclass -> superclass
+    static final byte SUPER_TABLE = 54;      // Class: superclass -> superclass
+    static final byte CLASS = 55;            // Class: [superclass] methods -> class
+    static final byte RETURN = 56;           // value ->
+
+    static final byte PRINT = 57;            // value ->
+    static final byte PRINTLN = 58;          // value ->
+    static final byte THROW = 59;            // message:
+
+    // A comparison fused with the JUMP_IF_FALSE of the loop or if it
+    // controls, so the Boolean never reaches the stack.
+    static final byte JUMP_UNLESS_GREATER = 60;       // offset: a b ->
+    static final byte JUMP_UNLESS_GREATER_EQUAL = 61; // offset: a b ->
+    static final byte JUMP_UNLESS_LESS = 62;          // offset: a b ->
+    static final byte JUMP_UNLESS_LESS_EQUAL = 63;    // offset: a b ->
+}
@@ -1,7 +1,6 @@
 package lumeProject.lume;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import static lumeProject.lume.TokenType.*;
 
@@ -118,6 +117,7 @@ class Parser {
     }
 
     private Stmt forStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
 
         Stmt initializer;
@@ -143,19 +143,8 @@ class Parser {
 
         Stmt body = statement();
 
-        if (increment != null) {
-            body = new Stmt.Block(Arrays.asList(body,
-                    new Stmt.Expression(increment)));
-        }
-
-        if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While (condition, body);
-
-        if (initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
-
-        return body;
+        return new Stmt.For(keyword, initializer, condition, increment,
+            body);
     }
 
     private Stmt ifStatement() {
@@ -180,12 +169,13 @@ class Parser {
     }
 
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
     
-        return new Stmt.While (condition, body);
+        return new Stmt.While (keyword, condition, body);
     }
 
     private List<Stmt> block() {
@@ -227,9 +217,43 @@ class Parser {
             error(equals, "Invalid assignment target.");
         }
 
+        if (match(PLUS_EQUAL, MINUS_EQUAL, STAR_EQUAL, SLASH_EQUAL)) {
+            Token compound = previous();
+            Token operator = compoundOperator(compound);
+            Expr value = assignment();
+
+            // x += v reads and writes x's own slot; a field gets a single
+            // node so its object is evaluated once.
+            if (expr instanceof Expr.Variable) {
+                Token name = ((Expr.Variable)expr).name;
+                return new Expr.Assign(name,
+                    new Expr.Binary(expr, operator, value));
+            } else if (expr instanceof Expr.Get) {
+                Expr.Get get = (Expr.Get)expr;
+                return new Expr.Update(get.object, get.name, operator,
+                    value, false);
+            }
+
+            error(compound, "Invalid assignment target.");
+        }
+
         return expr;
     }
 
+    // The arithmetic operator a compound assignment applies.
+    private Token compoundOperator(Token compound) {
+        TokenType type;
+        switch (compound.type) {
+            case PLUS_EQUAL: type = PLUS; break;
+            case MINUS_EQUAL: type = MINUS; break;
+            case STAR_EQUAL: type = STAR; break;
+            default: type = SLASH; break;
+        }
+
+        return new Token(type, compound.lexeme.substring(0, 1), null,
+            compound.line);
+    }
+
     private Expr or() {
         Expr expr = and();
     
@@ -269,9 +293,45 @@ class Parser {
     }
 
     private Expr comparison() {
-        Expr expr = term();
+        Expr expr = bitOr();
         
         while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
+            Token operator = previous();
+            Expr right = bitOr();
+            expr = new Expr.Binary(expr, operator, right);
+        }
+
+        return expr;
+    }
+
+    private Expr bitOr() {
+        Expr expr = bitAnd();
+
+        while (match(PIPE)) {
+            Token operator = previous();
+            Expr right = bitAnd();
+            expr = new Expr.Binary(expr, operator, right);
+        }
+
+        return expr;
+    }
+
+    private Expr bitAnd() {
+        Expr expr = shift();
+
+        while (match(AMPERSAND)) {
+            Token operator = previous();
+            Expr right = shift();
+            expr = new Expr.Binary(expr, operator, right);
+        }
+
+        return expr;
+    }
+
+    private Expr shift() {
+        Expr expr = term();
+
+        while (match(LESS_LESS, GREATER_GREATER)) {
             Token operator = previous();
             Expr right = term();
             expr = new Expr.Binary(expr, operator, right);
@@ -295,7 +355,7 @@ class Parser {
     private Expr factor() {
         Expr expr = unary();
 
-        while (match(SLASH, STAR)) {
+        while (match(SLASH, STAR, PERCENT)) {
             Token operator = previous();
             Expr right = unary();
             expr = new Expr.Binary(expr, operator, right);
@@ -308,6 +368,13 @@ class Parser {
         if (match(BANG, MINUS, PLUS_PLUS, MINUS_MINUS)) {
             Token operator = previous();
             Expr right = unary();
+            if (right instanceof Expr.Get &&
+                operator.type != BANG && operator.type != MINUS) {
+                Expr.Get get = (Expr.Get)right;
+                return new Expr.Update(get.object, get.name, operator,
+                    null, false);
+            }
+
             return new Expr.Unary(operator, right);
         }
 
@@ -319,7 +386,13 @@ class Parser {
     
         while (match(PLUS_PLUS, MINUS_MINUS)) {
             Token operator = previous();
-            expr = new Expr.Postfix(expr, operator);
+            if (expr instanceof Expr.Get) {
+                Expr.Get get = (Expr.Get)expr;
+                expr = new Expr.Update(get.object, get.name, operator,
+                    null, true);
+            } else {
+                expr = new Expr.Postfix(expr, operator);
+            }
         }
     
         return expr;
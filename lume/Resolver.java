@@ -1,20 +1,73 @@
 package lumeProject.lume;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final TypeInference types = new TypeInference();
+    private final Stack<Map<String, Local>> scopes = new Stack<>();
+    private FunctionScope functionScope = new FunctionScope(null);
     private FunctionType currentFunction = FunctionType.NONE;
     private int loopDepth = 0;
+    private Set<String> initializerFields = null;
+    private List<String> superMethods = null;
+
+    static final int GLOBAL = -1;
+    static final int CAPTURED = -2;
 
     Resolver(Interpreter interpreter) {
         this.interpreter = interpreter;
     }
 
+    private static class Local {
+        final int slot;
+        final FunctionScope owner;
+        final Stmt declaration;
+        final List<Expr> uses = new ArrayList<>();
+        int param = -1;
+        boolean defined = false;
+        boolean initializing = false;
+        boolean captured = false;
+        boolean assigned = false;
+        TypeInference.Variable type = null;
+
+        Local(int slot, FunctionScope owner, Stmt declaration) {
+            this.slot = slot;
+            this.owner = owner;
+            this.declaration = declaration;
+        }
+    }
+
+    // One function body (or top-level code) and the variables it captures
+    // from the functions around it. Every block scope inside the body
+    // takes its slots from the same frame, reusing them once the block
+    // ends, so only calls allocate frames. A capture is either a slot in
+    // the enclosing function's frame or one of the enclosing function's
+    // own captures, marked by CAPTURED.
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        final Map<Local, Integer> captures = new HashMap<>();
+        final List<Integer> captureDepths = new ArrayList<>();
+        final List<Integer> captureSlots = new ArrayList<>();
+        int nextSlot = 0;
+        int frameSize = 0;
+
+        FunctionScope(FunctionScope enclosing) {
+            this.enclosing = enclosing;
+        }
+
+        int allocate() {
+            frameSize = Math.max(frameSize, nextSlot + 1);
+            return nextSlot++;
+        }
+    }
+
     private enum FunctionType {
         NONE,
         FUNCTION,
@@ -35,6 +88,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     void resolve(List<Stmt> statements) {
+        resolveStatements(statements);
+        types.infer();
+        interpreter.resolveTopLevel(functionScope.frameSize);
+    }
+
+    private void resolveStatements(List<Stmt> statements) {
         for (Stmt statement : statements) {
           resolve(statement);
         }
@@ -47,12 +106,30 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitPostfixExpr(Expr.Postfix expr) {
         resolve(expr.left);
+        if (expr.left instanceof Expr.Variable) {
+            markAssigned(((Expr.Variable)expr.left).name, expr);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUpdateExpr(Expr.Update expr) {
+        expr.cache = new InlineCache();
+        resolve(expr.object);
+        if (expr.value != null) resolve(expr.value);
         return null;
     }
 
     @Override
     public Void visitUnaryExpr(Expr.Unary expr) {
         resolve(expr.right);
+        expr.specialization = Specialization.UNINITIALIZED;
+        types.operator(expr);
+        if ((expr.operator.type == TokenType.PLUS_PLUS ||
+             expr.operator.type == TokenType.MINUS_MINUS) &&
+            expr.right instanceof Expr.Variable) {
+            markAssigned(((Expr.Variable)expr.right).name, expr);
+        }
         return null;
     }
 
@@ -77,6 +154,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitCallExpr(Expr.Call expr) {
         resolve(expr.callee);
+        if (expr.callee instanceof Expr.Get) {
+            expr.cache = new InlineCache();
+        }
 
         for (Expr argument : expr.arguments) {
             resolve(argument);
@@ -89,6 +169,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitBinaryExpr(Expr.Binary expr) {
         resolve(expr.left);
         resolve(expr.right);
+        expr.specialization = Specialization.UNINITIALIZED;
+        types.operator(expr);
         return null;
     }
 
@@ -96,9 +178,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitClassStmt(Stmt.Class stmt) {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
+        Set<String> enclosingFields = initializerFields;
+        initializerFields = new HashSet<>();
+        List<String> enclosingSuperMethods = superMethods;
+        superMethods = new ArrayList<>();
 
-        declare(stmt.name, "Class");
+        stmt.slot = declare(stmt.name, "Class", stmt);
         define(stmt.name);
+        Local local = current(stmt.name);
+        if (local != null) local.initializing = true;
 
         if (stmt.superclass != null &&
             stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
@@ -113,12 +201,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            stmt.superSlot = declareSynthetic("super");
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
             if (method.name.lexeme.equals("init")) {
@@ -128,10 +213,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(method, declaration); 
         }
 
-        endScope();
-
         if (stmt.superclass != null) endScope();
 
+        if (local != null) local.initializing = false;
+        stmt.fieldNames = new ArrayList<>(initializerFields);
+        initializerFields = enclosingFields;
+        stmt.superMethods = superMethods;
+        superMethods = enclosingSuperMethods;
         currentClass = enclosingClass;
         return null;
     }  
@@ -147,6 +235,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.loop = new Jit.Loop(stmt, stmt.keyword.line);
         resolve(stmt.condition);
         loopDepth++;
         resolve(stmt.body);
@@ -154,6 +243,20 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        stmt.loop = new Jit.Loop(stmt, stmt.keyword.line);
+        beginScope();
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        if (stmt.condition != null) resolve(stmt.condition);
+        loopDepth++;
+        resolve(stmt.body);
+        loopDepth--;
+        if (stmt.increment != null) resolve(stmt.increment);
+        endScope();
+        return null;
+    }
+
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
@@ -195,10 +298,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name, "Function");
+        stmt.slot = declare(stmt.name, "Function", stmt);
         define(stmt.name);
+        Local local = current(stmt.name);
     
+        if (local != null) local.initializing = true;
         resolveFunction(stmt, FunctionType.FUNCTION);
+        if (local != null) local.initializing = false;
         return null;
     }
 
@@ -206,32 +312,89 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        FunctionScope enclosingScope = functionScope;
+        functionScope = new FunctionScope(enclosingScope);
         beginScope();
 
-        for (Token param : function.params) {
-            declare(param, param.lexeme);
-            define(param);
+        // Methods find their receiver in slot 0 of their own frame.
+        if (type == FunctionType.METHOD ||
+            type == FunctionType.INITIALIZER) {
+            declareSynthetic("this");
+            function.isMethod = true;
         }
-        resolve(function.body);
 
+        for (int i = 0; i < function.params.size(); i++) {
+            Token param = function.params.get(i);
+            declare(param, param.lexeme, function);
+            define(param);
+            current(param).param = i;
+        }
+        resolveStatements(function.body);
         endScope();
+
+        function.frameSize = functionScope.frameSize;
+        function.captureDepths = toArray(functionScope.captureDepths);
+        function.captureSlots = toArray(functionScope.captureSlots);
+        functionScope = enclosingScope;
         currentFunction = enclosingFunction;
     }
 
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
-        resolve(stmt.statements);
+        resolveStatements(stmt.statements);
         endScope();
         return null;
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<String, Local>());
     }
 
     private void endScope() {
-        scopes.pop();
+        Map<String, Local> scope = scopes.pop();
+        for (Local local : scope.values()) {
+            if (local.captured && local.assigned) box(local);
+        }
+
+        functionScope.nextSlot -= scope.size();
+    }
+
+    // A captured variable that never changes after its declaration is
+    // simply copied into each closure. One that is assigned has to be
+    // shared, so its declaration wraps it in a Box and every use goes
+    // through that box.
+    private void box(Local local) {
+        Stmt declaration = local.declaration;
+        if (local.param >= 0) {
+            Stmt.Function function = (Stmt.Function)declaration;
+            if (function.boxedParams == null) {
+                function.boxedParams = new boolean[function.params.size()];
+            }
+            function.boxedParams[local.param] = true;
+        } else if (declaration instanceof Stmt.Var) {
+            ((Stmt.Var)declaration).boxed = true;
+        } else if (declaration instanceof Stmt.Function) {
+            ((Stmt.Function)declaration).boxed = true;
+        } else if (declaration instanceof Stmt.Class) {
+            ((Stmt.Class)declaration).boxed = true;
+        }
+
+        for (Expr use : local.uses) {
+            if (use instanceof Expr.Variable) {
+                ((Expr.Variable)use).boxed = true;
+            } else {
+                ((Expr.Assign)use).boxed = true;
+            }
+        }
     }
 
     @Override
@@ -244,34 +407,75 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                 "Can't use 'super' in a class with no superclass.");
         }
 
-        resolveLocal(expr, expr.keyword);
+        Local superclass = lookUp("super");
+        Local object = lookUp("this");
+        if (superclass != null && object != null) {
+            expr.depth = depthOf(superclass);
+            expr.slot = slotOf(superclass);
+            expr.thisDepth = depthOf(object);
+            expr.thisSlot = slotOf(object);
+
+            // Each method the class reaches through super gets one entry
+            // in the table the class builds when it is defined.
+            expr.index = superMethods.indexOf(expr.method.lexeme);
+            if (expr.index == -1) {
+                expr.index = superMethods.size();
+                superMethods.add(expr.method.lexeme);
+            }
+        }
         return null;
     }
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name, "Variable");
+        stmt.slot = declare(stmt.name, "Variable", stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
         define(stmt.name);
+
+        // Only locals declared with 'var' get a type; parameters and
+        // globals can be given anything.
+        Local local = current(stmt.name);
+        if (local != null) {
+            if (local.type == null) local.type = types.declare();
+            types.write(local.type, stmt.initializer);
+        }
         return null;
     }
 
-    private void declare(Token name, String kind) {
-        if (scopes.isEmpty()) return;
+    private int declare(Token name, String kind, Stmt declaration) {
+        if (scopes.isEmpty()) return GLOBAL;
 
-        Map<String, Boolean> scope = scopes.peek();
+        Map<String, Local> scope = scopes.peek();
         if (scope.containsKey(name.lexeme)) {
             Lume.error(name,
                 "Already a " + kind.toLowerCase() + " with this name in this scope.");
+            return scope.get(name.lexeme).slot;
         }
-        scope.put(name.lexeme, false);
+
+        Local local = new Local(functionScope.allocate(), functionScope,
+            declaration);
+        scope.put(name.lexeme, local);
+        return local.slot;
+    }
+
+    private int declareSynthetic(String name) {
+        Local local = new Local(functionScope.allocate(), functionScope,
+            null);
+        local.defined = true;
+        scopes.peek().put(name, local);
+        return local.slot;
+    }
+
+    private Local current(Token name) {
+        if (scopes.isEmpty()) return null;
+        return scopes.peek().get(name.lexeme);
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().get(name.lexeme).defined = true;
     }
 
     @Override
@@ -282,12 +486,24 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             return null;
         }
 
-        resolveLocal(expr, expr.keyword);
+        Local local = lookUp("this");
+        if (local != null) {
+            expr.depth = depthOf(local);
+            expr.slot = slotOf(local);
+        }
         return null;
     }
 
     @Override
     public Void visitSetExpr(Expr.Set expr) {
+        // The fields init gives 'this' size the class's new instances.
+        if (currentFunction == FunctionType.INITIALIZER &&
+            expr.object instanceof Expr.This) {
+            initializerFields.add(expr.name.lexeme);
+        }
+
+        expr.cache = new InlineCache();
+
         resolve(expr.value);
         resolve(expr.object);
         return null;
@@ -295,35 +511,105 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitGetExpr(Expr.Get expr) {
+        expr.cache = new InlineCache();
         resolve(expr.object);
         return null;
     }
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() &&
-            scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lume.error(expr.name,
-                "Can't read local variable in its own initializer.");
+        if (!scopes.isEmpty()) {
+            Local local = scopes.peek().get(expr.name.lexeme);
+            if (local != null && !local.defined) {
+                Lume.error(expr.name,
+                    "Can't read local variable in its own initializer.");
+            }
         }
   
-        resolveLocal(expr, expr.name);
+        Local local = lookUp(expr.name.lexeme);
+        if (local != null) {
+            expr.depth = depthOf(local);
+            expr.slot = slotOf(local);
+            local.uses.add(expr);
+            if (local.type != null) types.read(expr, local.type);
+        } else {
+            expr.depth = GLOBAL;
+            expr.global = interpreter.globals.cell(expr.name.lexeme);
+        }
         return null;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    private Local lookUp(String name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-          if (scopes.get(i).containsKey(name.lexeme)) {
-            interpreter.resolve(expr, scopes.size() - 1 - i);
-            return;
+          Local local = scopes.get(i).get(name);
+          if (local != null) {
+            return local;
             }
         }
+
+        return null;
+    }
+
+    // Locals of the function being resolved live in its own frame, at
+    // depth 0; anything further out becomes a capture.
+    private int depthOf(Local local) {
+        if (local.owner == functionScope) return 0;
+        return CAPTURED;
+    }
+
+    private int slotOf(Local local) {
+        if (local.owner == functionScope) return local.slot;
+        return capture(functionScope, local);
+    }
+
+    private int capture(FunctionScope function, Local local) {
+        Integer index = function.captures.get(local);
+        if (index != null) return index;
+
+        local.captured = true;
+        // A closure created before the variable has its value, like a
+        // recursive local function, must share it through a box as well.
+        if (local.initializing) local.assigned = true;
+
+        int depth;
+        int slot;
+        if (function.enclosing == local.owner) {
+            depth = 0;
+            slot = local.slot;
+        } else {
+            depth = CAPTURED;
+            slot = capture(function.enclosing, local);
+        }
+
+        index = function.captureDepths.size();
+        function.captureDepths.add(depth);
+        function.captureSlots.add(slot);
+        function.captures.put(local, index);
+        return index;
+    }
+
+    private void markAssigned(Token name, Expr write) {
+        Local local = lookUp(name.lexeme);
+        if (local == null) return;
+
+        local.assigned = true;
+        if (local.type != null) types.write(local.type, write);
     }
     
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        Local local = lookUp(expr.name.lexeme);
+        if (local != null) {
+            expr.depth = depthOf(local);
+            expr.slot = slotOf(local);
+            local.uses.add(expr);
+            local.assigned = true;
+            if (local.type != null) types.write(local.type, expr.value);
+        } else {
+            expr.depth = GLOBAL;
+            expr.global = interpreter.globals.cell(expr.name.lexeme);
+        }
         return null;
     }
 }
\ No newline at end of file
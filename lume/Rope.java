@@ -0,0 +1,140 @@
+package lumeProject.lume;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+
+// A long string made by '+'. Instead of copying both sides, it links
+// them, so a string grown with s = s + piece in a loop costs linear time
+// in total rather than quadratic. The characters are laid out in one
+// String only when something needs them, and that String is kept.
+//
+// A Lume string value is either a java.lang.String or a Rope. Short
+// results are still plain Strings, and so is the last piece of a rope
+// while it stays short, so appending small pieces doesn't make one node
+// per piece.
+final class Rope {
+    // Below this length concatenating copies, which is cheaper than a node.
+    private static final int SHORT = 64;
+
+    // String or Rope; both null once flattened.
+    private Object left;
+    private Object right;
+    private final int length;
+    private String flat;
+
+    private Rope(Object left, Object right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    // Both sides must be strings.
+    static Object concat(Object left, Object right) {
+        int length = length(left) + length(right);
+        if (length < SHORT) return left.toString() + right.toString();
+
+        // Fold a short tail into the new piece rather than nesting it.
+        if (left instanceof Rope && right instanceof String) {
+            Rope rope = (Rope)left;
+            if (rope.flat == null && rope.right instanceof String &&
+                length(rope.right) + length(right) < SHORT) {
+                return new Rope(rope.left, (String)rope.right + right,
+                    length);
+            }
+        }
+
+        return new Rope(left, right, length);
+    }
+
+    static int length(Object string) {
+        if (string instanceof Rope) return ((Rope)string).length;
+        return ((String)string).length();
+    }
+
+    // Strings of different lengths differ without being laid out.
+    static boolean equal(Object a, Object b) {
+        if (a == b) return true;
+        if (length(a) != length(b)) return false;
+        return a.toString().equals(b.toString());
+    }
+
+    // Writes the pieces in order without joining them first.
+    static void print(PrintStream out, Object string) {
+        if (string instanceof String) {
+            out.print((String)string);
+            return;
+        }
+
+        Rope root = (Rope)string;
+        if (root.flat != null) {
+            out.print(root.flat);
+            return;
+        }
+
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Object piece = pending.pop();
+            if (piece instanceof String) {
+                out.print((String)piece);
+                continue;
+            }
+
+            Rope rope = (Rope)piece;
+            if (rope.flat != null) {
+                out.print(rope.flat);
+            } else {
+                pending.push(rope.right);
+                pending.push(rope.left);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (flat != null) return flat;
+
+        // Ropes grown in a loop are as deep as they are long, so walk
+        // them with an explicit stack instead of recursion.
+        char[] chars = new char[length];
+        int at = 0;
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            Object piece = pending.pop();
+            String text = null;
+            if (piece instanceof String) {
+                text = (String)piece;
+            } else if (((Rope)piece).flat != null) {
+                text = ((Rope)piece).flat;
+            }
+
+            if (text != null) {
+                text.getChars(0, text.length(), chars, at);
+                at += text.length();
+            } else {
+                pending.push(((Rope)piece).right);
+                pending.push(((Rope)piece).left);
+            }
+        }
+
+        flat = new String(chars);
+        left = null;
+        right = null;
+        return flat;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return isString(other) && equal(this, other);
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
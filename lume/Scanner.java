@@ -62,13 +62,24 @@ class Scanner {
             case ',': addToken(COMMA); break;
             case '.': addToken(DOT); break;
             case ';': addToken(SEMICOLON); break;
-            case '*': addToken(STAR); break;
+            case '*': addToken(match('=') ? STAR_EQUAL : STAR); break;
+            case '%': addToken(PERCENT); break;
+            case '&': addToken(AMPERSAND); break;
+            case '|': addToken(PIPE); break;
             
             case '+': 
-                addToken(match('+') ? PLUS_PLUS : PLUS);
+                if (match('+')) {
+                    addToken(PLUS_PLUS);
+                } else {
+                    addToken(match('=') ? PLUS_EQUAL : PLUS);
+                }
                 break;
             case '-':
-                addToken(match('-') ? MINUS_MINUS : MINUS);
+                if (match('-')) {
+                    addToken(MINUS_MINUS);
+                } else {
+                    addToken(match('=') ? MINUS_EQUAL : MINUS);
+                }
                 break;
 
             case '!':
@@ -78,17 +89,25 @@ class Scanner {
                 addToken(match('=') ? EQUAL_EQUAL : EQUAL);
                 break;
             case '<':
-                addToken(match('=') ? LESS_EQUAL : LESS);
+                if (match('<')) {
+                    addToken(LESS_LESS);
+                } else {
+                    addToken(match('=') ? LESS_EQUAL : LESS);
+                }
                 break;
             case '>':
-                addToken(match('=') ? GREATER_EQUAL : GREATER);
+                if (match('>')) {
+                    addToken(GREATER_GREATER);
+                } else {
+                    addToken(match('=') ? GREATER_EQUAL : GREATER);
+                }
                 break;
 
             case '/':
                 if (match('/')) {
                     while (peek() != '\n' && !isAtEnd()) advance();
                 } else {
-                    addToken(SLASH);
+                    addToken(match('=') ? SLASH_EQUAL : SLASH);
                 }
                 break;
             
@@ -138,10 +157,19 @@ class Scanner {
         if (peek() == '.' && isDigit(peekNext())) {
             advance();
             while (isDigit(peek())) advance();
+
+            addToken(NUMBER, 
+                Double.parseDouble(source.substring(start, current)));
+            return;
         }
 
-        addToken(NUMBER, 
-            Double.parseDouble(source.substring(start, current)));
+        // Integer literals too big for a long fall back to a double.
+        String text = source.substring(start, current);
+        try {
+            addToken(NUMBER, Long.parseLong(text));
+        } catch (NumberFormatException e) {
+            addToken(NUMBER, Double.parseDouble(text));
+        }
     }
 
     private void identifier() {
@@ -0,0 +1,42 @@
+package lumeProject.lume;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The field layout shared by every instance that gained the same fields
+// in the same order. Instances keep their values in a plain array at the
+// slots their shape assigns, and move to a child shape when they gain a
+// field. Each class has its own root, so a shape also pins the class.
+class Shape {
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape() {
+        this.slots = new HashMap<>();
+    }
+
+    private Shape(Map<String, Integer> slots) {
+        this.slots = slots;
+    }
+
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    Shape with(String name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            Map<String, Integer> grown = new HashMap<>(slots);
+            grown.put(name, slots.size());
+            next = new Shape(grown);
+            transitions.put(name, next);
+        }
+
+        return next;
+    }
+}
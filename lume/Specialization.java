@@ -0,0 +1,68 @@
+package lumeProject.lume;
+
+// What an operator node has specialized itself to from the operand types
+// it has seen. A node starts out UNINITIALIZED, picks the variant for the
+// types of its first operands, and falls back to GENERIC for good once
+// it sees any other types.
+enum Specialization {
+    UNINITIALIZED,
+
+    INTEGER_ADD, INTEGER_SUBTRACT, INTEGER_MULTIPLY, INTEGER_DIVIDE,
+    INTEGER_MODULO, INTEGER_AND, INTEGER_OR,
+    INTEGER_SHIFT_LEFT, INTEGER_SHIFT_RIGHT,
+    INTEGER_GREATER, INTEGER_GREATER_EQUAL,
+    INTEGER_LESS, INTEGER_LESS_EQUAL,
+    INTEGER_NEGATE,
+
+    REAL_ADD, REAL_SUBTRACT, REAL_MULTIPLY, REAL_DIVIDE, REAL_MODULO,
+    REAL_GREATER, REAL_GREATER_EQUAL,
+    REAL_LESS, REAL_LESS_EQUAL,
+    REAL_NEGATE,
+
+    STRING_ADD,
+
+    GENERIC;
+
+    static Specialization of(TokenType operator,
+                             boolean leftIsDouble, boolean rightIsDouble) {
+        if (!leftIsDouble && !rightIsDouble) {
+            switch (operator) {
+                case PLUS: return INTEGER_ADD;
+                case MINUS: return INTEGER_SUBTRACT;
+                case STAR: return INTEGER_MULTIPLY;
+                case SLASH: return INTEGER_DIVIDE;
+                case PERCENT: return INTEGER_MODULO;
+                case AMPERSAND: return INTEGER_AND;
+                case PIPE: return INTEGER_OR;
+                case LESS_LESS: return INTEGER_SHIFT_LEFT;
+                case GREATER_GREATER: return INTEGER_SHIFT_RIGHT;
+                case GREATER: return INTEGER_GREATER;
+                case GREATER_EQUAL: return INTEGER_GREATER_EQUAL;
+                case LESS: return INTEGER_LESS;
+                case LESS_EQUAL: return INTEGER_LESS_EQUAL;
+                default: return GENERIC;
+            }
+        }
+
+        if (leftIsDouble && rightIsDouble) {
+            switch (operator) {
+                case PLUS: return REAL_ADD;
+                case MINUS: return REAL_SUBTRACT;
+                case STAR: return REAL_MULTIPLY;
+                case SLASH: return REAL_DIVIDE;
+                case PERCENT: return REAL_MODULO;
+                case GREATER: return REAL_GREATER;
+                case GREATER_EQUAL: return REAL_GREATER_EQUAL;
+                case LESS: return REAL_LESS;
+                case LESS_EQUAL: return REAL_LESS_EQUAL;
+                default: return GENERIC;
+            }
+        }
+
+        return GENERIC;
+    }
+
+    static Specialization negate(boolean isDouble) {
+        return isDouble ? REAL_NEGATE : INTEGER_NEGATE;
+    }
+}
@@ -13,6 +13,7 @@ abstract class Stmt {
         R visitReturnStmt(Return stmt);
         R visitVarStmt(Var stmt);
         R visitWhileStmt(While stmt);
+        R visitForStmt(For stmt);
         R visitBreakStmt(Break stmt);
     }
     static class Block extends Stmt {
@@ -52,6 +53,11 @@ abstract class Stmt {
         final Token name;
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
+        int slot;
+        boolean boxed;
+        int superSlot;
+        List<String> fieldNames;
+        List<String> superMethods;
     }    static class Function extends Stmt {
         Function(Token name, List<Token> params, List<Stmt> body) {
             this.name = name;
@@ -67,6 +73,17 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        int slot;
+        boolean boxed;
+        int frameSize;
+        int[] captureDepths;
+        int[] captureSlots;
+        boolean[] boxedParams;
+        boolean isMethod;
+        int invocations;
+        Jit.Code compiled;
+        int deopts;
+        int[] entryTypes;
     }    static class If extends Stmt {
         If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
             this.condition = condition;
@@ -121,8 +138,11 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        int slot;
+        boolean boxed;
     }    static class While extends Stmt {
-        While(Expr condition, Stmt body) {
+        While(Token keyword, Expr condition, Stmt body) {
+            this.keyword = keyword;
             this.condition = condition;
             this.body = body;
         }
@@ -132,8 +152,30 @@ abstract class Stmt {
             return visitor.visitWhileStmt(this);
         }
 
+        final Token keyword;
+        final Expr condition;
+        final Stmt body;
+        Jit.Loop loop;
+    }    static class For extends Stmt {
+        For(Token keyword, Stmt initializer, Expr condition, Expr increment, Stmt body) {
+            this.keyword = keyword;
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForStmt(this);
+        }
+
+        final Token keyword;
+        final Stmt initializer;
         final Expr condition;
+        final Expr increment;
         final Stmt body;
+        Jit.Loop loop;
     }    static class Break extends Stmt {
         Break(Token keyword) {
             this.keyword = keyword;
@@ -4,6 +4,7 @@ enum TokenType {
     // Single-character tokens
     LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, 
     COMMA, DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR,
+    PERCENT, AMPERSAND, PIPE,
     PLUS_PLUS, MINUS_MINUS,
 
     // Multi-character tokens
@@ -11,6 +12,8 @@ enum TokenType {
     EQUAL, EQUAL_EQUAL, 
     GREATER, GREATER_EQUAL,
     LESS, LESS_EQUAL,
+    LESS_LESS, GREATER_GREATER,
+    PLUS_EQUAL, MINUS_EQUAL, STAR_EQUAL, SLASH_EQUAL,
 
     // Literals
     IDENTIFIER, STRING, NUMBER,
@@ -0,0 +1,212 @@
+package lumeProject.lume;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Works out which expressions always produce a number or a string, so the
+// interpreter can take operators' fast paths from the first execution on
+// and skip their operand checks. The resolver reports every local 'var'
+// with each value written to it. Only such locals get a type: all their
+// writes are visible, while parameters, globals and anything fetched
+// through a call or a property could hold anything.
+class TypeInference implements Expr.Visitor<TypeInference.Type> {
+    enum Type {
+        // Nothing known yet; only seen while the types settle.
+        NONE,
+        NUMBER,
+        STRING,
+        BOOLEAN,
+        NIL,
+        UNKNOWN;
+
+        Type join(Type other) {
+            if (this == other || other == NONE) return this;
+            if (this == NONE) return other;
+            return UNKNOWN;
+        }
+    }
+
+    static class Variable {
+        private final List<Expr> writes = new ArrayList<>();
+        private boolean writesNil = false;
+        private Type type = Type.NONE;
+    }
+
+    private final List<Variable> variables = new ArrayList<>();
+    private final Map<Expr.Variable, Variable> reads =
+        new IdentityHashMap<>();
+    private final List<Expr.Binary> binaries = new ArrayList<>();
+    private final List<Expr.Unary> unaries = new ArrayList<>();
+
+    Variable declare() {
+        Variable variable = new Variable();
+        variables.add(variable);
+        return variable;
+    }
+
+    // A null value stands for a declaration without an initializer.
+    void write(Variable variable, Expr value) {
+        if (value == null) {
+            variable.writesNil = true;
+        } else {
+            variable.writes.add(value);
+        }
+    }
+
+    void read(Expr.Variable expr, Variable variable) {
+        reads.put(expr, variable);
+    }
+
+    void operator(Expr.Binary expr) {
+        binaries.add(expr);
+    }
+
+    void operator(Expr.Unary expr) {
+        unaries.add(expr);
+    }
+
+    // Every variable starts out NONE and takes the join of what is
+    // written to it, round after round, until no type changes.
+    void infer() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Variable variable : variables) {
+                Type type = variable.writesNil ? Type.NIL : Type.NONE;
+                for (Expr write : variable.writes) {
+                    type = type.join(typeOf(write));
+                }
+
+                if (type != variable.type) {
+                    variable.type = type;
+                    changed = true;
+                }
+            }
+        }
+
+        for (Expr.Binary expr : binaries) {
+            Type left = typeOf(expr.left);
+            Type right = typeOf(expr.right);
+            expr.numericLeft = left == Type.NUMBER;
+            expr.numericRight = right == Type.NUMBER;
+            if (expr.operator.type == TokenType.PLUS &&
+                left == Type.STRING && right == Type.STRING) {
+                expr.specialization = Specialization.STRING_ADD;
+            }
+        }
+
+        for (Expr.Unary expr : unaries) {
+            expr.numericRight = typeOf(expr.right) == Type.NUMBER;
+        }
+    }
+
+    private Type typeOf(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Type visitAssignExpr(Expr.Assign expr) {
+        return typeOf(expr.value);
+    }
+
+    @Override
+    public Type visitBinaryExpr(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case PLUS: {
+                Type left = typeOf(expr.left);
+                Type right = typeOf(expr.right);
+                // Adding anything to a string either fails or makes one.
+                if (left == Type.STRING || right == Type.STRING) {
+                    return Type.STRING;
+                }
+
+                if (left == Type.NONE || right == Type.NONE) return Type.NONE;
+                if (left == Type.NUMBER && right == Type.NUMBER) {
+                    return Type.NUMBER;
+                }
+
+                return Type.UNKNOWN;
+            }
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                return Type.BOOLEAN;
+            default:
+                return Type.NUMBER;
+        }
+    }
+
+    @Override
+    public Type visitGroupingExpr(Expr.Grouping expr) {
+        return typeOf(expr.expression);
+    }
+
+    @Override
+    public Type visitCallExpr(Expr.Call expr) {
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitSetExpr(Expr.Set expr) {
+        return typeOf(expr.value);
+    }
+
+    @Override
+    public Type visitSuperExpr(Expr.Super expr) {
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitGetExpr(Expr.Get expr) {
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitThisExpr(Expr.This expr) {
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) return Type.NIL;
+        if (Numbers.isNumber(expr.value)) return Type.NUMBER;
+        if (expr.value instanceof String) return Type.STRING;
+        if (expr.value instanceof Boolean) return Type.BOOLEAN;
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitLogicalExpr(Expr.Logical expr) {
+        return typeOf(expr.left).join(typeOf(expr.right));
+    }
+
+    @Override
+    public Type visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) return Type.BOOLEAN;
+        return Type.NUMBER;
+    }
+
+    @Override
+    public Type visitPostfixExpr(Expr.Postfix expr) {
+        return Type.NUMBER;
+    }
+
+    @Override
+    public Type visitUpdateExpr(Expr.Update expr) {
+        if (expr.operator.type != TokenType.PLUS) return Type.NUMBER;
+        if (typeOf(expr.value) == Type.STRING) return Type.STRING;
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitVariableExpr(Expr.Variable expr) {
+        Variable variable = reads.get(expr);
+        if (variable == null) return Type.UNKNOWN;
+        return variable.type;
+    }
+}
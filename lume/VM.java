@@ -0,0 +1,801 @@
+package lumeProject.lume;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Runs the bytecode the Compiler produces. All values live on one stack.
+// A call's frame is a window of it: the receiver of a method, then the
+// parameters and the locals, then the temporaries of the body's
+// expressions. The callee and arguments a call pushes become the bottom
+// of the new frame, so arguments are never copied.
+//
+// Globals, natives, printing and every runtime structure (functions,
+// classes, instances, shapes, inline caches) are shared with the
+// Interpreter, which also runs any function the VM didn't create.
+class VM implements Backend {
+    private static final int FRAMES_MAX = 1 << 16;
+    // Stands in for the receiver when an invoked property is not a method.
+    private static final Object NO_RECEIVER = new Object();
+
+    private final Interpreter interpreter;
+    private Object[] stack = new Object[1 << 10];
+
+    // The call frames, innermost last. Where a frame's result goes is
+    // the slot its callee was pushed to.
+    private Chunk[] chunks = new Chunk[64];
+    private int[] ips = new int[64];
+    private int[] bases = new int[64];
+    private int[] results = new int[64];
+    private Object[][] captureStack = new Object[64][];
+    private int frameCount = 0;
+
+    VM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    @Override
+    public void interpret(List<Stmt> statements) {
+        Chunk script;
+        try {
+            script = Compiler.compile(statements);
+        } catch (IllegalStateException error) {
+            System.err.println("Error: " + error.getMessage());
+            Lume.hadError = true;
+            return;
+        }
+
+        try {
+            frameCount = 0;
+            int frameSize = script.frameSize(interpreter.topLevelFrameSize);
+            ensureCapacity(frameSize + script.maxStack);
+            Arrays.fill(stack, null);
+            push(script, null, 0, 0, frameSize, null);
+            run(frameSize);
+        } catch (RuntimeError error) {
+            interpreter.out.flush();
+            Lume.runtimeError(error);
+        } finally {
+            interpreter.out.flush();
+        }
+    }
+
+    private void run(int sp) {
+        frame:
+        for (;;) {
+            Object[] stack = this.stack;
+            int frame = frameCount - 1;
+            Chunk chunk = chunks[frame];
+            byte[] code = chunk.code;
+            Object[] constants = chunk.constants;
+            Object[] captures = captureStack[frame];
+            int base = bases[frame];
+            int ip = ips[frame];
+
+            for (;;) {
+                int at = ip;
+                switch (code[ip++]) {
+                    case OpCode.CONSTANT:
+                        stack[sp++] = constants[readShort(code, ip)];
+                        ip += 2;
+                        break;
+                    case OpCode.NIL:
+                        stack[sp++] = null;
+                        break;
+                    case OpCode.TRUE:
+                        stack[sp++] = true;
+                        break;
+                    case OpCode.FALSE:
+                        stack[sp++] = false;
+                        break;
+                    case OpCode.POP:
+                        sp--;
+                        break;
+                    case OpCode.DUP:
+                        stack[sp] = stack[sp - 1];
+                        sp++;
+                        break;
+
+                    case OpCode.GET_LOCAL:
+                        stack[sp++] = stack[base + readShort(code, ip)];
+                        ip += 2;
+                        break;
+                    case OpCode.GET_LOCAL_BOXED:
+                        stack[sp++] =
+                            ((Box)stack[base + readShort(code, ip)]).value;
+                        ip += 2;
+                        break;
+                    case OpCode.SET_LOCAL:
+                        stack[base + readShort(code, ip)] = stack[sp - 1];
+                        ip += 2;
+                        break;
+                    case OpCode.SET_LOCAL_BOXED:
+                        ((Box)stack[base + readShort(code, ip)]).value =
+                            stack[sp - 1];
+                        ip += 2;
+                        break;
+                    case OpCode.STORE_LOCAL:
+                        stack[base + readShort(code, ip)] = stack[--sp];
+                        ip += 2;
+                        break;
+                    case OpCode.STORE_LOCAL_BOXED:
+                        stack[base + readShort(code, ip)] =
+                            new Box(stack[--sp]);
+                        ip += 2;
+                        break;
+                    case OpCode.NEW_BOX:
+                        stack[base + readShort(code, ip)] = new Box(null);
+                        ip += 2;
+                        break;
+                    case OpCode.GET_CAPTURE:
+                        stack[sp++] = captures[readShort(code, ip)];
+                        ip += 2;
+                        break;
+                    case OpCode.GET_CAPTURE_BOXED:
+                        stack[sp++] =
+                            ((Box)captures[readShort(code, ip)]).value;
+                        ip += 2;
+                        break;
+                    case OpCode.SET_CAPTURE_BOXED:
+                        ((Box)captures[readShort(code, ip)]).value =
+                            stack[sp - 1];
+                        ip += 2;
+                        break;
+                    case OpCode.GET_GLOBAL: {
+                        Globals.Cell cell =
+                            (Globals.Cell)constants[readShort(code, ip)];
+                        ip += 2;
+                        Object value = cell.value;
+                        if (value == Globals.UNDEFINED) {
+                            value = interpreter.globals.get(cell,
+                                chunk.tokens[at]);
+                        }
+                        stack[sp++] = value;
+                        break;
+                    }
+                    case OpCode.SET_GLOBAL:
+                        interpreter.globals.assign(
+                            (Globals.Cell)constants[readShort(code, ip)],
+                            chunk.tokens[at], stack[sp - 1]);
+                        ip += 2;
+                        break;
+                    case OpCode.DEFINE_GLOBAL:
+                        interpreter.globals.define(
+                            (String)constants[readShort(code, ip)],
+                            stack[--sp]);
+                        ip += 2;
+                        break;
+
+                    case OpCode.GET_PROPERTY: {
+                        Expr.Get get = (Expr.Get)constants[readShort(code, ip)];
+                        ip += 2;
+                        Object object = stack[sp - 1];
+                        if (!(object instanceof LumeInstance)) {
+                            throw new RuntimeError(get.name,
+                                "Only instances have properties.");
+                        }
+                        stack[sp - 1] =
+                            get.cache.get((LumeInstance)object, get.name);
+                        break;
+                    }
+                    case OpCode.CHECK_INSTANCE: {
+                        Expr.Set set = (Expr.Set)constants[readShort(code, ip)];
+                        ip += 2;
+                        if (!(stack[sp - 1] instanceof LumeInstance)) {
+                            throw new RuntimeError(set.name,
+                                "Only instances have fields.");
+                        }
+                        break;
+                    }
+                    case OpCode.SET_PROPERTY: {
+                        Expr.Set set = (Expr.Set)constants[readShort(code, ip)];
+                        ip += 2;
+                        Object value = stack[--sp];
+                        set.cache.set((LumeInstance)stack[sp - 1], set.name,
+                            value);
+                        stack[sp - 1] = value;
+                        break;
+                    }
+                    case OpCode.UPDATE_READ:
+                        stack[sp] = readField(
+                            (Expr.Update)constants[readShort(code, ip)],
+                            stack[sp - 1]);
+                        sp++;
+                        ip += 2;
+                        break;
+                    case OpCode.UPDATE_WRITE: {
+                        Expr.Update update =
+                            (Expr.Update)constants[readShort(code, ip)];
+                        ip += 2;
+                        Object value = null;
+                        if (update.value != null) value = stack[--sp];
+                        Object old = stack[--sp];
+                        stack[sp - 1] = writeField(update,
+                            (LumeInstance)stack[sp - 1], old, value);
+                        break;
+                    }
+
+                    case OpCode.ADD: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Long && b instanceof Long) {
+                            long x = (long)a;
+                            long y = (long)b;
+                            if (Numbers.addIsExact(x, y)) {
+                                stack[sp - 1] = x + y;
+                                break;
+                            }
+                        }
+                        stack[sp - 1] = add(chunk.tokens[at], a, b);
+                        break;
+                    }
+                    case OpCode.SUBTRACT: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Long && b instanceof Long) {
+                            long x = (long)a;
+                            long y = (long)b;
+                            if (Numbers.subtractIsExact(x, y)) {
+                                stack[sp - 1] = x - y;
+                                break;
+                            }
+                        }
+                        stack[sp - 1] = arithmetic(chunk.tokens[at], a, b);
+                        break;
+                    }
+                    case OpCode.MULTIPLY: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Long && b instanceof Long) {
+                            long x = (long)a;
+                            long y = (long)b;
+                            if (Numbers.multiplyIsExact(x, y)) {
+                                stack[sp - 1] = x * y;
+                                break;
+                            }
+                        }
+                        stack[sp - 1] = arithmetic(chunk.tokens[at], a, b);
+                        break;
+                    }
+                    case OpCode.MODULO: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Long && b instanceof Long &&
+                            (long)b != 0) {
+                            stack[sp - 1] = (long)a % (long)b;
+                            break;
+                        }
+                        stack[sp - 1] = arithmetic(chunk.tokens[at], a, b);
+                        break;
+                    }
+                    case OpCode.DIVIDE:
+                    case OpCode.BIT_AND:
+                    case OpCode.BIT_OR:
+                    case OpCode.SHIFT_LEFT:
+                    case OpCode.SHIFT_RIGHT: {
+                        Object b = stack[--sp];
+                        stack[sp - 1] = arithmetic(chunk.tokens[at],
+                            stack[sp - 1], b);
+                        break;
+                    }
+                    case OpCode.LESS: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Long && b instanceof Long) {
+                            stack[sp - 1] = (long)a < (long)b;
+                            break;
+                        }
+                        stack[sp - 1] = compare(chunk.tokens[at], a, b);
+                        break;
+                    }
+                    case OpCode.LESS_EQUAL: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Long && b instanceof Long) {
+                            stack[sp - 1] = (long)a <= (long)b;
+                            break;
+                        }
+                        stack[sp - 1] = compare(chunk.tokens[at], a, b);
+                        break;
+                    }
+                    case OpCode.GREATER: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Long && b instanceof Long) {
+                            stack[sp - 1] = (long)a > (long)b;
+                            break;
+                        }
+                        stack[sp - 1] = compare(chunk.tokens[at], a, b);
+                        break;
+                    }
+                    case OpCode.GREATER_EQUAL: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Long && b instanceof Long) {
+                            stack[sp - 1] = (long)a >= (long)b;
+                            break;
+                        }
+                        stack[sp - 1] = compare(chunk.tokens[at], a, b);
+                        break;
+                    }
+                    case OpCode.EQUAL: {
+                        Object b = stack[--sp];
+                        stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                        break;
+                    }
+                    case OpCode.NOT_EQUAL: {
+                        Object b = stack[--sp];
+                        stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+                        break;
+                    }
+                    case OpCode.NEGATE:
+                        Interpreter.checkNumberOperand(chunk.tokens[at],
+                            stack[sp - 1]);
+                        stack[sp - 1] = Numbers.negate(stack[sp - 1]);
+                        break;
+                    case OpCode.NOT:
+                        stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                        break;
+                    case OpCode.INCREMENT:
+                        Interpreter.checkNumberOperand(chunk.tokens[at],
+                            stack[sp - 1]);
+                        stack[sp - 1] = Numbers.step(stack[sp - 1], 1);
+                        break;
+                    case OpCode.DECREMENT:
+                        Interpreter.checkNumberOperand(chunk.tokens[at],
+                            stack[sp - 1]);
+                        stack[sp - 1] = Numbers.step(stack[sp - 1], -1);
+                        break;
+
+                    case OpCode.JUMP:
+                        ip += 4 + readInt(code, ip);
+                        break;
+                    case OpCode.JUMP_IF_FALSE:
+                        if (Interpreter.isTruthy(stack[--sp])) {
+                            ip += 4;
+                        } else {
+                            ip += 4 + readInt(code, ip);
+                        }
+                        break;
+                    case OpCode.AND:
+                        if (Interpreter.isTruthy(stack[sp - 1])) {
+                            sp--;
+                            ip += 4;
+                        } else {
+                            ip += 4 + readInt(code, ip);
+                        }
+                        break;
+                    case OpCode.OR:
+                        if (Interpreter.isTruthy(stack[sp - 1])) {
+                            ip += 4 + readInt(code, ip);
+                        } else {
+                            sp--;
+                            ip += 4;
+                        }
+                        break;
+                    case OpCode.JUMP_UNLESS_GREATER:
+                    case OpCode.JUMP_UNLESS_GREATER_EQUAL:
+                    case OpCode.JUMP_UNLESS_LESS:
+                    case OpCode.JUMP_UNLESS_LESS_EQUAL: {
+                        Object b = stack[--sp];
+                        Object a = stack[--sp];
+                        boolean holds;
+                        if (a instanceof Long && b instanceof Long) {
+                            long x = (long)a;
+                            long y = (long)b;
+                            switch (code[at]) {
+                                case OpCode.JUMP_UNLESS_GREATER:
+                                    holds = x > y;
+                                    break;
+                                case OpCode.JUMP_UNLESS_GREATER_EQUAL:
+                                    holds = x >= y;
+                                    break;
+                                case OpCode.JUMP_UNLESS_LESS:
+                                    holds = x < y;
+                                    break;
+                                default:
+                                    holds = x <= y;
+                                    break;
+                            }
+                        } else {
+                            holds = (boolean)compare(chunk.tokens[at], a, b);
+                        }
+
+                        ip += holds ? 4 : 4 + readInt(code, ip);
+                        break;
+                    }
+
+                    case OpCode.CALL: {
+                        int count = code[ip++] & 0xff;
+                        int callee = sp - count - 1;
+                        ips[frame] = ip;
+                        sp = call(stack[callee], callee, count,
+                            chunk.tokens[at]);
+                        continue frame;
+                    }
+                    case OpCode.INVOKE_PREP:
+                        prepareInvoke(
+                            (Expr.Call)constants[readShort(code, ip)], sp);
+                        sp++;
+                        ip += 2;
+                        break;
+                    case OpCode.INVOKE: {
+                        int count = code[ip++] & 0xff;
+                        int callee = sp - count - 2;
+                        ips[frame] = ip;
+                        Object receiver = stack[callee + 1];
+                        if (receiver == NO_RECEIVER) {
+                            System.arraycopy(stack, callee + 2, stack,
+                                callee + 1, count);
+                            sp = call(stack[callee], callee, count,
+                                chunk.tokens[at]);
+                        } else {
+                            sp = invoke((LumeFunction)stack[callee],
+                                (LumeInstance)receiver, callee, count,
+                                chunk.tokens[at]);
+                        }
+                        continue frame;
+                    }
+                    case OpCode.SUPER_PREP: {
+                        Expr.Super target =
+                            (Expr.Super)constants[readShort(code, ip)];
+                        ip += 2;
+                        stack[sp - 2] = superMethod(target, stack[sp - 2]);
+                        break;
+                    }
+                    case OpCode.SUPER_GET: {
+                        Expr.Super target =
+                            (Expr.Super)constants[readShort(code, ip)];
+                        ip += 2;
+                        LumeInstance object = (LumeInstance)stack[--sp];
+                        stack[sp - 1] =
+                            superMethod(target, stack[sp - 1]).bind(object);
+                        break;
+                    }
+                    case OpCode.CLOSURE: {
+                        Chunk body = (Chunk)constants[readShort(code, ip)];
+                        ip += 2;
+                        stack[sp++] = new LumeFunction(body,
+                            capture(body.function, base, captures));
+                        break;
+                    }
+                    case OpCode.CHECK_SUPERCLASS: {
+                        Stmt.Class stmt =
+                            (Stmt.Class)constants[readShort(code, ip)];
+                        ip += 2;
+                        if (!(stack[sp - 1] instanceof LumeClass)) {
+                            throw new RuntimeError(stmt.superclass.name,
+                                "Superclass must be a class.");
+                        }
+                        break;
+                    }
+                    case OpCode.SUPER_TABLE: {
+                        Stmt.Class stmt =
+                            (Stmt.Class)constants[readShort(code, ip)];
+                        ip += 2;
+                        LumeClass superclass = (LumeClass)stack[sp - 1];
+                        stack[base + stmt.superSlot] =
+                            superclass.findMethods(stmt.superMethods);
+                        break;
+                    }
+                    case OpCode.CLASS: {
+                        Stmt.Class stmt =
+                            (Stmt.Class)constants[readShort(code, ip)];
+                        ip += 2;
+                        sp -= stmt.methods.size();
+                        if (stmt.superclass != null) sp--;
+                        stack[sp] = defineClass(stmt, sp);
+                        sp++;
+                        break;
+                    }
+                    case OpCode.RETURN: {
+                        Object result = stack[--sp];
+                        if (chunk.isInitializer) result = stack[base];
+
+                        frameCount--;
+                        if (frameCount == 0) return;
+
+                        sp = results[frame];
+                        stack[sp++] = result;
+                        continue frame;
+                    }
+
+                    case OpCode.PRINT:
+                        interpreter.print(stack[--sp], false);
+                        break;
+                    case OpCode.PRINTLN:
+                        interpreter.print(stack[--sp], true);
+                        break;
+                    case OpCode.THROW:
+                        throw new RuntimeError(chunk.tokens[at],
+                            (String)constants[readShort(code, ip)]);
+                    default:
+                        throw new IllegalStateException(
+                            "Unknown opcode " + code[at] + ".");
+                }
+            }
+        }
+    }
+
+    private static int readShort(byte[] code, int at) {
+        return (code[at] & 0xff) << 8 | code[at + 1] & 0xff;
+    }
+
+    private static int readInt(byte[] code, int at) {
+        return code[at] << 24 | (code[at + 1] & 0xff) << 16 |
+            (code[at + 2] & 0xff) << 8 | code[at + 3] & 0xff;
+    }
+
+    private static Object add(Token operator, Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) {
+            return (double)a + (double)b;
+        }
+
+        return Interpreter.add(operator, a, b);
+    }
+
+    private static Object arithmetic(Token operator, Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) {
+            double x = (double)a;
+            double y = (double)b;
+            switch (operator.type) {
+                case MINUS: return x - y;
+                case STAR: return x * y;
+                case SLASH: return x / y;
+                default: break;
+            }
+        }
+
+        return Numbers.binary(operator, a, b);
+    }
+
+    private static Object compare(Token operator, Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) {
+            return Numbers.compare(operator.type, (double)a, (double)b);
+        }
+
+        return Numbers.binary(operator, a, b);
+    }
+
+    // Calls a function, class or native whose arguments sit above it on
+    // the stack at 'at'. A function the VM compiled gets a frame, and its
+    // RETURN leaves the result at 'at'; anything else runs to completion
+    // here. Returns the new stack top.
+    private int call(Object callee, int at, int count, Token paren) {
+        if (callee instanceof LumeFunction) {
+            LumeFunction function = (LumeFunction)callee;
+            checkArity(function, count, paren);
+            if (function.chunk != null) {
+                if (function.declaration.isMethod) {
+                    // A bound method: the receiver takes the callee's slot.
+                    stack[at] = function.receiver;
+                    return push(function.chunk, function.captures, at, at,
+                        count + 1, paren);
+                }
+
+                return push(function.chunk, function.captures, at, at + 1,
+                    count, paren);
+            }
+        } else if (callee instanceof LumeClass) {
+            LumeClass klass = (LumeClass)callee;
+            checkArity(klass, count, paren);
+            LumeFunction initializer = klass.initializer;
+            if (initializer == null) {
+                stack[at] = new LumeInstance(klass);
+                return at + 1;
+            }
+
+            if (initializer.chunk != null) {
+                stack[at] = new LumeInstance(klass);
+                return push(initializer.chunk, initializer.captures, at, at,
+                    count + 1, paren);
+            }
+        } else if (!(callee instanceof LumeCallable)) {
+            throw new RuntimeError(paren,
+                "Can only call functions and classes.");
+        }
+
+        LumeCallable function = (LumeCallable)callee;
+        checkArity(function, count, paren);
+        Object[] stack = this.stack;
+        Object result;
+        switch (count) {
+            case 0:
+                result = function.call0(interpreter);
+                break;
+            case 1:
+                result = function.call1(interpreter, stack[at + 1]);
+                break;
+            case 2:
+                result = function.call2(interpreter, stack[at + 1],
+                    stack[at + 2]);
+                break;
+            case 3:
+                result = function.call3(interpreter, stack[at + 1],
+                    stack[at + 2], stack[at + 3]);
+                break;
+            default:
+                result = function.call(interpreter,
+                    Arrays.copyOfRange(stack, at + 1, at + 1 + count));
+                break;
+        }
+
+        stack[at] = result;
+        return at + 1;
+    }
+
+    // Calls a method with its receiver already in the slot above it.
+    private int invoke(LumeFunction method, LumeInstance receiver, int at,
+                       int count, Token paren) {
+        checkArity(method, count, paren);
+        if (method.chunk != null) {
+            return push(method.chunk, method.captures, at, at + 1,
+                count + 1, paren);
+        }
+
+        Object[] frame = method.newFrame(receiver);
+        System.arraycopy(stack, at + 2, frame, 1, count);
+        stack[at] = method.invoke(interpreter, frame);
+        return at + 1;
+    }
+
+    private static void checkArity(LumeCallable function, int count,
+                                   Token paren) {
+        if (count != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+                function.arity() + " arguments but got " + count + ".");
+        }
+    }
+
+    // Replaces the object below the arguments with the method a call
+    // through the site invokes and the object as its receiver, or, when
+    // the property isn't a method, with its value and NO_RECEIVER.
+    private void prepareInvoke(Expr.Call call, int sp) {
+        Expr.Get get = (Expr.Get)call.callee;
+        Object object = stack[sp - 1];
+        if (!(object instanceof LumeInstance)) {
+            throw new RuntimeError(get.name,
+                "Only instances have properties.");
+        }
+
+        LumeInstance instance = (LumeInstance)object;
+        LumeFunction method = call.cache.method(instance, get.name.lexeme);
+        if (method != null) {
+            stack[sp - 1] = method;
+            stack[sp] = instance;
+        } else {
+            stack[sp - 1] = instance.get(get.name);
+            stack[sp] = NO_RECEIVER;
+        }
+    }
+
+    // Makes a frame for the body of a function. Its arguments, and the
+    // receiver of a method, already fill the first slots.
+    private int push(Chunk chunk, Object[] captures, int result, int base,
+                     int filled, Token paren) {
+        if (frameCount == chunks.length) growFrames(paren);
+
+        int top = base + chunk.frameSize(interpreter.topLevelFrameSize);
+        ensureCapacity(top + chunk.maxStack);
+        Arrays.fill(stack, base + filled, top, null);
+
+        Stmt.Function function = chunk.function;
+        if (function != null && function.boxedParams != null) {
+            int slot = base + (function.isMethod ? 1 : 0);
+            for (int i = 0; i < function.boxedParams.length; i++) {
+                if (function.boxedParams[i]) {
+                    stack[slot + i] = new Box(stack[slot + i]);
+                }
+            }
+        }
+
+        chunks[frameCount] = chunk;
+        ips[frameCount] = 0;
+        bases[frameCount] = base;
+        results[frameCount] = result;
+        captureStack[frameCount] = captures;
+        frameCount++;
+        return top;
+    }
+
+    private void growFrames(Token paren) {
+        if (frameCount == FRAMES_MAX) {
+            throw new RuntimeError(paren, "Stack overflow.");
+        }
+
+        int capacity = frameCount * 2;
+        chunks = Arrays.copyOf(chunks, capacity);
+        ips = Arrays.copyOf(ips, capacity);
+        bases = Arrays.copyOf(bases, capacity);
+        results = Arrays.copyOf(results, capacity);
+        captureStack = Arrays.copyOf(captureStack, capacity);
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= stack.length) return;
+        stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+    }
+
+    private Object[] capture(Stmt.Function function, int base,
+                             Object[] captures) {
+        int count = function.captureDepths.length;
+        Object[] values = new Object[count];
+        for (int i = 0; i < count; i++) {
+            int slot = function.captureSlots[i];
+            values[i] = function.captureDepths[i] == Resolver.CAPTURED
+                ? captures[slot] : stack[base + slot];
+        }
+
+        return values;
+    }
+
+    private static LumeFunction superMethod(Expr.Super expr, Object table) {
+        LumeFunction method = ((LumeFunction[])table)[expr.index];
+        if (method == null) {
+            throw new RuntimeError(expr.method,
+                "Undefined property '" + expr.method.lexeme + "'.");
+        }
+
+        return method;
+    }
+
+    // The superclass, if any, and the methods in order start at 'first'.
+    private LumeClass defineClass(Stmt.Class stmt, int first) {
+        LumeClass superclass = null;
+        Map<String, LumeFunction> methods = new HashMap<>();
+        if (stmt.superclass != null) {
+            superclass = (LumeClass)stack[first++];
+            methods.putAll(superclass.methods);
+        }
+
+        for (Stmt.Function method : stmt.methods) {
+            methods.put(method.name.lexeme, (LumeFunction)stack[first++]);
+        }
+
+        return new LumeClass(stmt.name.lexeme, superclass, methods,
+            stmt.fieldNames);
+    }
+
+    private static Object readField(Expr.Update update, Object object) {
+        if (!(object instanceof LumeInstance)) {
+            throw new RuntimeError(update.name,
+                "Only instances have fields.");
+        }
+
+        LumeInstance instance = (LumeInstance)object;
+        int slot = update.cache.slot(instance, update.name);
+        if (slot == -1) return instance.get(update.name);
+        return instance.values[slot];
+    }
+
+    private static Object writeField(Expr.Update update,
+                                     LumeInstance instance, Object old,
+                                     Object value) {
+        Token operator = update.operator;
+        Object updated;
+        switch (operator.type) {
+            case PLUS_PLUS:
+            case MINUS_MINUS:
+                Interpreter.checkNumberOperand(operator, old);
+                updated = Numbers.step(old,
+                    (operator.type == TokenType.PLUS_PLUS) ? 1 : -1);
+                break;
+            case PLUS:
+                updated = Interpreter.add(operator, old, value);
+                break;
+            default:
+                updated = Numbers.binary(operator, old, value);
+                break;
+        }
+
+        int slot = update.cache.slot(instance, update.name);
+        if (slot == -1) {
+            update.cache.set(instance, update.name, updated);
+        } else {
+            instance.values[slot] = updated;
+        }
+
+        return update.postfix ? old : updated;
+    }
+}
@@ -0,0 +1,57 @@
+#!/bin/bash
+# Differential test: runs every script here on each backend and compares
+# its output and exit status with expected/. Run from anywhere:
+#   test/run.sh
+cd "$(dirname "$0")/.." || exit 1
+tests=$PWD/test
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+javac -d "$work/classes" lume/*.java || exit 1
+lume="java -Xss8m -cp $work/classes lumeProject.lume.Lume"
+
+failed=0
+check() {
+    local mode=$1 name=$2
+    if ! diff -q "$tests/expected/$name.out" "$work/$name.out" >/dev/null; then
+        echo "FAIL [$mode] $name"
+        diff "$tests/expected/$name.out" "$work/$name.out" | head -10
+        failed=1
+    fi
+}
+
+run() {
+    local mode=$1; shift
+    for script in "$tests"/*.lume; do
+        name=$(basename "$script" .lume)
+        (cd "$tests" && timeout 60 $lume "$@" "$name.lume" \
+            > "$work/$name.out" 2>&1 < /dev/null)
+        echo "exit=$?" >> "$work/$name.out"
+        check "$mode" "$name"
+    done
+}
+
+run tree
+run closures --closures
+run vm --vm
+# Compile everything at once, so the JIT tiers see every call and loop.
+run jit --jit-calls=1 --jit-loops=1
+run jit-closures --closures --jit-calls=1 --jit-loops=1
+
+for script in "$tests"/*.lume; do
+    name=$(basename "$script" .lume)
+    (cd "$tests" && timeout 60 $lume --compile "$name.lume" \
+        "$work/$name.jar" > "$work/$name.out" 2>&1)
+    status=$?
+    if [ $status -eq 0 ]; then
+        timeout 60 java -Xss8m -cp "$work/$name.jar" \
+            "lumeProject.lume.Script_$name" < /dev/null \
+            >> "$work/$name.out" 2>&1
+        status=$?
+    fi
+    echo "exit=$status" >> "$work/$name.out"
+    check aot "$name"
+done
+
+[ $failed -eq 0 ] && echo "All backends match."
+exit $failed
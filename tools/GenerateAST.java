@@ -15,34 +15,54 @@ public class GenerateAST {
         String outputDir = args[0];
 
         defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign   : Token name, Expr value",
-            "Binary   : Expr left, Token operator, Expr right",
+            "Assign   : Token name, Expr value" +
+                  " | int depth, int slot, boolean boxed, Globals.Cell global",
+            "Binary   : Expr left, Token operator, Expr right" +
+                  " | boolean numericLeft, boolean numericRight," +
+                  " Specialization specialization",
             "Grouping : Expr expression",
-            "Call     : Expr callee, Token paren, List<Expr> arguments",
-            "Set      : Expr object, Token name, Expr value",
-            "Super    : Token keyword, Token method",
-            "Get      : Expr object, Token name",
-            "This     : Token keyword",
+            "Call     : Expr callee, Token paren, List<Expr> arguments" +
+                  " | InlineCache cache",
+            "Set      : Expr object, Token name, Expr value" +
+                  " | InlineCache cache",
+            "Super    : Token keyword, Token method" +
+                  " | int depth, int slot, int thisDepth, int thisSlot, int index",
+            "Get      : Expr object, Token name | InlineCache cache",
+            "This     : Token keyword | int depth, int slot",
             "Literal  : Object value",
             "Logical  : Expr left, Token operator, Expr right",
-            "Unary    : Token operator, Expr right",
+            "Unary    : Token operator, Expr right" +
+                  " | boolean numericRight, Specialization specialization",
             "Postfix  : Expr left, Token operator",
-            "Variable : Token name"
+            "Update   : Expr object, Token name, Token operator," +
+                  " Expr value, boolean postfix | InlineCache cache",
+            "Variable : Token name" +
+                  " | int depth, int slot, boolean boxed, Globals.Cell global"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
             "Block      : List<Stmt> statements",
             "Expression : Expr expression",
             "Class      : Token name, Expr.Variable superclass," +
-                  " List<Stmt.Function> methods",
+                  " List<Stmt.Function> methods" +
+                  " | int slot, boolean boxed, int superSlot," +
+                  " List<String> fieldNames, List<String> superMethods",
             "Function   : Token name, List<Token> params," +
-                  " List<Stmt> body",
+                  " List<Stmt> body | int slot, boolean boxed, int frameSize," +
+                  " int[] captureDepths, int[] captureSlots," +
+                  " boolean[] boxedParams, boolean isMethod," +
+                  " int invocations, Jit.Code compiled, int deopts," +
+                  " int[] entryTypes",
             "If         : Expr condition, Stmt thenBranch," +
                         " Stmt elseBranch",
             "Print      : Expr expression, Token printType",
             "Return     : Token keyword, Expr value",
-            "Var        : Token name, Expr initializer",
-            "While      : Expr condition, Stmt body",
+            "Var        : Token name, Expr initializer | int slot, boolean boxed",
+            "While      : Token keyword, Expr condition, Stmt body" +
+                        " | Jit.Loop loop",
+            "For        : Token keyword, Stmt initializer," +
+                        " Expr condition, Expr increment, Stmt body" +
+                        " | Jit.Loop loop",
             "Break      : Token keyword"
         ));
     }
@@ -63,8 +83,10 @@ public class GenerateAST {
 
             for(String type : types) {
                 String className = type.split(":")[0].trim();
-                String fields = type.split(":")[1].trim();
-                defineType(writer, baseName, className, fields);
+                String[] parts = type.split(":")[1].split("\\|");
+                String fields = parts[0].trim();
+                String resolved = parts.length > 1 ? parts[1].trim() : null;
+                defineType(writer, baseName, className, fields, resolved);
             }
 
             writer.println("");
@@ -87,9 +109,11 @@ public class GenerateAST {
             writer.println("    }");
         }
 
+    // Fields after a '|' are filled in by the Resolver, so they are
+    // mutable and left out of the constructor.
     public static void defineType(
         PrintWriter writer, String baseName, 
-        String className, String fieldList) {
+        String className, String fieldList, String resolvedList) {
             writer.println("    static class " + className + " extends " + baseName + " {");
 
             writer.println("        " + className + "(" + fieldList + ") {");
@@ -114,6 +138,12 @@ public class GenerateAST {
                 writer.println("        final " + field + ";");
             }
 
+            if (resolvedList != null) {
+                for(String field : resolvedList.split(", ")) {
+                    writer.println("        " + field + ";");
+                }
+            }
+
             writer.print("    }");
 
     }